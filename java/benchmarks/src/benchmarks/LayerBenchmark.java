@@ -0,0 +1,62 @@
+package benchmarks;
+
+import network.layers.DenseLayer;
+import network.layers.LSTMLayer;
+import network.layers.RecurrentLayer;
+import network.math.Matrix;
+import network.math.MyRand;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * feedForward of each layer type, at the sizes of the Player brain
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LayerBenchmark {
+    private RecurrentLayer recurrent10x16;
+    private RecurrentLayer recurrent16x16;
+    private DenseLayer dense16x8;
+    private LSTMLayer lstm10x16;
+
+    private Matrix input10;
+    private Matrix input16;
+
+    @Setup
+    public void setup() {
+        MyRand.initialize(0);
+
+        recurrent10x16 = new RecurrentLayer(10, 16);
+        recurrent16x16 = new RecurrentLayer(16, 16);
+        dense16x8 = new DenseLayer(16, 8, "sigmoid");
+        lstm10x16 = new LSTMLayer(10, 16);
+
+        input10 = Matrix.randomUniform(1, 10, 1.0f);
+        input16 = Matrix.randomUniform(1, 16, 1.0f);
+    }
+
+    @Benchmark
+    public Matrix recurrent10x16() {
+        return recurrent10x16.feedForward(input10);
+    }
+
+    @Benchmark
+    public Matrix recurrent16x16() {
+        return recurrent16x16.feedForward(input16);
+    }
+
+    @Benchmark
+    public Matrix dense16x8() {
+        return dense16x8.feedForward(input16);
+    }
+
+    @Benchmark
+    public Matrix lstm10x16() {
+        return lstm10x16.feedForward(input10);
+    }
+}
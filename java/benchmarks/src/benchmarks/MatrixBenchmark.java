@@ -0,0 +1,55 @@
+package benchmarks;
+
+import network.math.Matrix;
+import network.math.MyRand;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matrix.dot at the sizes the Player brain uses, plus a batched size.
+ * The Into versions show the cost without the result allocation
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MatrixBenchmark {
+    // Rows of the input. 1 is one unit, more is a batch of units or players
+    @Param({"1", "64"})
+    public int batch;
+
+    // Input size and output size of the multiply.
+    // 26x16 is the first recurrent layer ([10 inputs | 16 hidden] x 16)
+    @Param({"26x16", "32x16", "16x8"})
+    public String shape;
+
+    private Matrix input;
+    private Matrix weights;
+    private Matrix out;
+
+    @Setup
+    public void setup() {
+        MyRand.initialize(0);
+
+        String[] sizes = shape.split("x");
+        int inner = Integer.parseInt(sizes[0]);
+        int cols = Integer.parseInt(sizes[1]);
+
+        input = Matrix.randomUniform(batch, inner, 1.0f);
+        weights = Matrix.randomUniform(inner, cols, 1.0f);
+        out = new Matrix(batch, cols);
+    }
+
+    @Benchmark
+    public Matrix dot() {
+        return input.dot(weights);
+    }
+
+    @Benchmark
+    public Matrix dotInto() {
+        return input.dotInto(weights, out);
+    }
+}
@@ -0,0 +1,77 @@
+package benchmarks;
+
+import network.CompiledNetwork;
+import network.Network;
+import network.math.Matrix;
+import network.math.MyRand;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole network operations on the Player brain:
+ * one forward pass, and the genetic operators used in Population.naturalSelection
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NetworkBenchmark {
+    // Same as Population's defaults
+    private static final float MUTATION_RATE = 0.05f;
+    private static final float MUTATION_SIZE = 0.5f;
+
+    private Network parentA;
+    private Network parentB;
+    private Network mutated;
+    private CompiledNetwork compiled;
+    private CompiledNetwork quantized;
+
+    private Matrix input;
+
+    @Setup
+    public void setup() {
+        MyRand.initialize(0);
+
+        parentA = Topologies.playerBrain();
+        parentB = Topologies.playerBrain();
+        mutated = Topologies.playerBrain();
+        compiled = parentA.compile();
+        quantized = parentA.quantize();
+
+        input = Matrix.randomUniform(1, 10, 1.0f);
+    }
+
+    @Benchmark
+    public Matrix feedForward() {
+        return parentA.feedForward(input);
+    }
+
+    @Benchmark
+    public Matrix compiledFeedForward() {
+        return compiled.feedForward(input);
+    }
+
+    @Benchmark
+    public Matrix quantizedFeedForward() {
+        return quantized.feedForward(input);
+    }
+
+    @Benchmark
+    public Network crossover() {
+        return parentA.crossover(parentB);
+    }
+
+    @Benchmark
+    public Network mutate() {
+        mutated.mutate(MUTATION_RATE, MUTATION_SIZE);
+        return mutated;
+    }
+
+    @Benchmark
+    public float[] getChromosome() {
+        return parentA.getChromosome();
+    }
+}
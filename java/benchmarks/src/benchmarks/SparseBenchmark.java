@@ -0,0 +1,79 @@
+package benchmarks;
+
+import network.math.Activations;
+import network.math.DenseKernel;
+import network.math.Matrix;
+import network.math.MyRand;
+import network.math.PackedWeights;
+import network.math.SparseWeights;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The packed and sparse dense kernels on the same pruned weights, at several densities.
+ * The density where sparse starts winning is SparseWeights.DENSITY_CUTOFF
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SparseBenchmark {
+    // Fraction of the weights left after pruning
+    @Param({"0.05", "0.1", "0.2", "0.3", "0.4", "0.5", "0.7", "1.0"})
+    public float density;
+
+    // Rows of the input. 1 is one unit, more is a batch of units or players
+    @Param({"1", "64"})
+    public int batch;
+
+    // Input size and output size of the layer.
+    // 26x16 is the first recurrent layer ([10 inputs | 16 hidden] x 16)
+    @Param({"26x16", "16x8", "128x64"})
+    public String shape;
+
+    private Matrix input;
+    private PackedWeights packed;
+    private SparseWeights sparse;
+    private Matrix out;
+
+    @Setup
+    public void setup() {
+        MyRand.initialize(0);
+
+        String[] sizes = shape.split("x");
+        int inputs = Integer.parseInt(sizes[0]);
+        int outputs = Integer.parseInt(sizes[1]);
+
+        Matrix weights = Matrix.randomUniform(inputs, outputs, 1.0f);
+        Matrix biases = Matrix.randomUniform(1, outputs, 1.0f);
+
+        // Zero weights at random, like prune does to the small ones
+        SplittableRandom random = new SplittableRandom(0);
+        for (int i = 0; i < inputs; i++) {
+            for (int j = 0; j < outputs; j++) {
+                if (random.nextDouble() >= density) {
+                    weights.set(i, j, 0);
+                }
+            }
+        }
+
+        input = Matrix.randomUniform(batch, inputs, 1.0f);
+        packed = new PackedWeights(weights, biases);
+        sparse = new SparseWeights(weights, biases);
+        out = new Matrix(batch, outputs);
+    }
+
+    @Benchmark
+    public Matrix packed() {
+        return DenseKernel.feedForward(input, packed, Activations.SIGMOID, out);
+    }
+
+    @Benchmark
+    public Matrix sparse() {
+        return DenseKernel.feedForward(input, sparse, Activations.SIGMOID, out);
+    }
+}
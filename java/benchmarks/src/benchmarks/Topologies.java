@@ -0,0 +1,22 @@
+package benchmarks;
+
+import network.Network;
+import network.layers.DenseLayer;
+import network.layers.RecurrentLayer;
+
+/**
+ * Networks shaped like the ones used in training.
+ * genetics.Player can't be created here because it needs SEPIA on the classpath
+ */
+public class Topologies {
+    /**
+     * @return A network with the same layers as the genetics.Player brain
+     */
+    public static Network playerBrain() {
+        Network brain = new Network();
+        brain.addLayer(new RecurrentLayer(10, 16));
+        brain.addLayer(new RecurrentLayer(16, 16));
+        brain.addLayer(new DenseLayer(16, 8, "sigmoid"));
+        return brain;
+    }
+}
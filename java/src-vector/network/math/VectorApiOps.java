@@ -0,0 +1,184 @@
+package network.math;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD version of VectorOps, using the incubating JDK Vector API.
+ * Only compiled by the vector-api maven profile (JDK 17+), and only loaded
+ * when the JVM is started with --add-modules jdk.incubator.vector.
+ * Each method does the full vectors first, then finishes the tail with scalar code
+ */
+public class VectorApiOps extends VectorOps {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    public VectorApiOps() {
+        // Fail here, while VectorOps is choosing a backend, if the module is missing
+        FloatVector.zero(SPECIES);
+    }
+
+    @Override
+    public boolean isVectorized() {
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return "vector-api (" + SPECIES.length() + " floats)";
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    @Override
+    public void axpy(float alpha, float[] x, int xOff, float[] y, int yOff, int n) {
+        int i = 0;
+        int bound = SPECIES.loopBound(n);
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector vx = FloatVector.fromArray(SPECIES, x, xOff + i);
+            FloatVector vy = FloatVector.fromArray(SPECIES, y, yOff + i);
+            vx.mul(alpha).add(vy).intoArray(y, yOff + i);
+        }
+        for (; i < n; i++) {
+            y[yOff + i] += alpha * x[xOff + i];
+        }
+    }
+
+    @Override
+    public float dot(float[] a, int aOff, float[] b, int bOff, int n) {
+        int i = 0;
+        int bound = SPECIES.loopBound(n);
+        FloatVector acc = FloatVector.zero(SPECIES);
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, aOff + i);
+            FloatVector vb = FloatVector.fromArray(SPECIES, b, bOff + i);
+            acc = va.fma(vb, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            sum += a[aOff + i] * b[bOff + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void add(float[] a, int aOff, float[] b, int bOff, float[] out, int outOff, int n) {
+        int i = 0;
+        int bound = SPECIES.loopBound(n);
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, aOff + i);
+            FloatVector vb = FloatVector.fromArray(SPECIES, b, bOff + i);
+            va.add(vb).intoArray(out, outOff + i);
+        }
+        for (; i < n; i++) {
+            out[outOff + i] = a[aOff + i] + b[bOff + i];
+        }
+    }
+
+    @Override
+    public void subtract(float[] a, int aOff, float[] b, int bOff, float[] out, int outOff, int n) {
+        int i = 0;
+        int bound = SPECIES.loopBound(n);
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, aOff + i);
+            FloatVector vb = FloatVector.fromArray(SPECIES, b, bOff + i);
+            va.sub(vb).intoArray(out, outOff + i);
+        }
+        for (; i < n; i++) {
+            out[outOff + i] = a[aOff + i] - b[bOff + i];
+        }
+    }
+
+    @Override
+    public void multiply(float[] a, int aOff, float[] b, int bOff, float[] out, int outOff, int n) {
+        int i = 0;
+        int bound = SPECIES.loopBound(n);
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, aOff + i);
+            FloatVector vb = FloatVector.fromArray(SPECIES, b, bOff + i);
+            va.mul(vb).intoArray(out, outOff + i);
+        }
+        for (; i < n; i++) {
+            out[outOff + i] = a[aOff + i] * b[bOff + i];
+        }
+    }
+
+    @Override
+    public void add(float[] a, int aOff, float value, float[] out, int outOff, int n) {
+        int i = 0;
+        int bound = SPECIES.loopBound(n);
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, a, aOff + i).add(value).intoArray(out, outOff + i);
+        }
+        for (; i < n; i++) {
+            out[outOff + i] = a[aOff + i] + value;
+        }
+    }
+
+    @Override
+    public void multiply(float[] a, int aOff, float value, float[] out, int outOff, int n) {
+        int i = 0;
+        int bound = SPECIES.loopBound(n);
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, a, aOff + i).mul(value).intoArray(out, outOff + i);
+        }
+        for (; i < n; i++) {
+            out[outOff + i] = a[aOff + i] * value;
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    @Override
+    public void sigmoid(float[] x, int off, int n) {
+        int i = 0;
+        int bound = SPECIES.loopBound(n);
+        for (; i < bound; i += SPECIES.length()) {
+            sigmoid(FloatVector.fromArray(SPECIES, x, off + i)).intoArray(x, off + i);
+        }
+        for (; i < n; i++) {
+            x[off + i] = Activations.sigmoid(x[off + i]);
+        }
+    }
+
+    @Override
+    public void tanh(float[] x, int off, int n) {
+        int i = 0;
+        int bound = SPECIES.loopBound(n);
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, x, off + i).lanewise(VectorOperators.TANH).intoArray(x, off + i);
+        }
+        for (; i < n; i++) {
+            x[off + i] = Activations.tanh(x[off + i]);
+        }
+    }
+
+    // The vector exp and tanh are already cheap and well within the fast activation
+    // error bounds, so the fast types use them too
+    @Override
+    public void activate(float[] x, int off, int n, int activation) {
+        if (activation == Activations.FAST_SIGMOID) {
+            sigmoid(x, off, n);
+        } else if (activation == Activations.FAST_TANH) {
+            tanh(x, off, n);
+        } else {
+            super.activate(x, off, n, activation);
+        }
+    }
+
+    @Override
+    public void relu(float[] x, int off, int n) {
+        int i = 0;
+        int bound = SPECIES.loopBound(n);
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, x, off + i).max(0f).intoArray(x, off + i);
+        }
+        for (; i < n; i++) {
+            x[off + i] = Activations.relu(x[off + i]);
+        }
+    }
+
+    private static FloatVector sigmoid(FloatVector v) {
+        // 1 / (1 + e^-x)
+        FloatVector denominator = v.neg().lanewise(VectorOperators.EXP).add(1f);
+        return FloatVector.broadcast(SPECIES, 1f).div(denominator);
+    }
+}
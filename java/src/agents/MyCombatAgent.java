@@ -5,6 +5,7 @@ import edu.cwru.sepia.agent.Agent;
 import edu.cwru.sepia.environment.model.history.History;
 import edu.cwru.sepia.environment.model.state.State;
 import genetics.Population;
+import network.RecurrentState;
 import network.math.Matrix;
 import network.math.MyRand;
 
@@ -28,6 +29,9 @@ public class MyCombatAgent extends Agent {
 
     private Population players;
 
+    // Recurrent state of each of my units' brains, for this episode
+    private final Map<Integer, RecurrentState> unitStates = new HashMap<Integer, RecurrentState>();
+
     private int epochsElapsed;
 
     private long startTime;
@@ -51,6 +55,9 @@ public class MyCombatAgent extends Agent {
         // Load if watching replay, else make random
         if (watchReplay) {
             this.players = Population.loadPopulation(String.format("saved_data/populations/p%d/population_%d.ser", playernum, 800));
+
+            // Saved brains are only watched, so int8 weights are close enough
+            this.players.setQuantizedBrains(true);
         } else {
             this.players = new Population(500);
         }
@@ -117,13 +124,19 @@ public class MyCombatAgent extends Agent {
 
         // Run each unit's neural network
         // They are all the same network,
-        // But each unit sees different things
+        // But each unit sees different things, and remembers its own
         for (Integer unitID : myUnitIDs)
         {
+            RecurrentState unitState = unitStates.get(unitID);
+            if (unitState == null) {
+                unitState = players.getCurrentPlayer().newBrainState();
+                unitStates.put(unitID, unitState);
+            }
+
             Matrix inputData = players.getCurrentPlayer().observeEnvironment(state, unitID, myUnitIDs, enemyUnitIDs);
             players.getCurrentPlayer().standardizeInputData(inputData);
-            Matrix output = players.getActions(inputData);
-            players.getCurrentPlayer().convertOutputToActions(state, output.getData()[0], actions, unitID, enemyUnitIDs);
+            Matrix output = players.getActions(inputData, unitState);
+            players.getCurrentPlayer().convertOutputToActions(state, output.getRow(0), actions, unitID, enemyUnitIDs);
 //            System.out.print("Input data: " + inputData);
 //            System.out.print("network.Network result: " + output);
         }
@@ -144,6 +157,9 @@ public class MyCombatAgent extends Agent {
         enemyUnitIDs = state.getUnitIds(enemyPlayerNum);
         players.getCurrentPlayer().terminalFitnessUpdate(state, history, myUnitIDs, enemyUnitIDs);
 
+        // Next episode starts fresh, and may be a different player's brain
+        unitStates.clear();
+
         // Need to store to print because they get rest in moveToNextMember upon new epoch
         int[] fitnesses = players.getFitnesses();
 
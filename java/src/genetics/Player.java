@@ -7,16 +7,19 @@ import edu.cwru.sepia.environment.model.state.State;
 import edu.cwru.sepia.environment.model.state.Unit;
 import edu.cwru.sepia.environment.model.state.UnitTemplate;
 import edu.cwru.sepia.util.Direction;
+import network.CompiledNetwork;
 import network.Network;
+import network.RecurrentState;
 import network.layers.DenseLayer;
 import network.layers.LSTMLayer;
 import network.layers.RecurrentLayer;
 import network.math.Matrix;
-import network.math.MyRand;
+import network.math.RandomStreams;
 
 import java.io.Serializable;
 import java.util.List;
 import java.util.Map;
+import java.util.SplittableRandom;
 
 /**
  * An agent. Note that one agent controls multiple units
@@ -24,6 +27,12 @@ import java.util.Map;
 public class Player implements Serializable {
     private Network brain; // Brain to make decisions
 
+    // Inference plan of the brain, compiled on first use and dropped when the brain mutates
+    private transient CompiledNetwork compiledBrain;
+
+    // Compile the brain with int8 weights, see Network.quantize
+    private transient boolean quantizedBrain;
+
     private int fitness; // Fitness score
 
     private float color; // This player's "color" (used to see relations between players)
@@ -156,14 +165,12 @@ public class Player implements Serializable {
         float[] stds = {1, 1, 12};
         int nDataPerUnit = means.length;
 
-        // Get reference to data
-        float[] data = inputData.getData()[0];
-        for (int i = 0; i < data.length; i++) {
+        for (int i = 0; i < inputData.getCols(); i++) {
             // Index determines what type of data we are normalizing
             // We start with health for our unit, so it needs to be offset
             int index = (i + 2) % nDataPerUnit;
             // Standardize:
-            data[i] = (data[i] - means[index]) / stds[index];
+            inputData.set(0, i, (inputData.get(0, i) - means[index]) / stds[index]);
         }
     }
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
@@ -361,16 +368,58 @@ public class Player implements Serializable {
      * @return The brain's output data
      */
     public Matrix useBrain(Matrix inputData) {
-        return brain.feedForward(inputData);
+        return getCompiledBrain().feedForward(inputData);
+    }
+
+    /**
+     * Same as useBrain(inputData), with a separate recurrent state
+     * @param state State from newBrainState()
+     */
+    public Matrix useBrain(Matrix inputData, RecurrentState state) {
+        return getCompiledBrain().feedForward(inputData, state);
+    }
+
+    /**
+     * @return A new recurrent state for useBrain, for example one per unit.
+     * It stops working when the brain is compiled again, after mutate or setQuantizedBrain
+     */
+    public RecurrentState newBrainState() {
+        return getCompiledBrain().newState();
+    }
+
+    public CompiledNetwork getCompiledBrain() {
+        if (compiledBrain == null) {
+            compiledBrain = quantizedBrain ? brain.quantize() : brain.compile();
+        }
+        return compiledBrain;
+    }
+
+    /**
+     * Runs useBrain with int8 weights, for players that are only evaluated, such as in replays.
+     * Outputs are within rounding error of the full precision brain
+     */
+    public void setQuantizedBrain(boolean quantizedBrain) {
+        if (this.quantizedBrain != quantizedBrain) {
+            this.quantizedBrain = quantizedBrain;
+            compiledBrain = null;
+        }
+    }
+
+    public boolean isQuantizedBrain() {
+        return quantizedBrain;
     }
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
 
     public Player crossover(Player partner){
+        return crossover(partner, RandomStreams.current());
+    }
+
+    public Player crossover(Player partner, SplittableRandom random){
         // New child with crossovered brain
-        Player child = new Player(brain.crossover(partner.brain));
+        Player child = new Player(brain.crossover(partner.brain, random));
 
         // Crossover color randomly
-        child.color = (MyRand.randFloat() > 0.5) ? this.color:partner.color;
+        child.color = (RandomStreams.nextFloat(random) > 0.5) ? this.color:partner.color;
 
         return child;
     }
@@ -383,11 +432,17 @@ public class Player implements Serializable {
      */
     public void mutate(float mutationRate, float mutationSize)
     {
-        brain.mutate(mutationRate, mutationSize);
+        mutate(mutationRate, mutationSize, RandomStreams.current());
+    }
+
+    public void mutate(float mutationRate, float mutationSize, SplittableRandom random)
+    {
+        brain.mutate(mutationRate, mutationSize, random);
+        compiledBrain = null;
 
         // Randomly mutate color
-        if(MyRand.randFloat() < mutationRate){
-            color += 0.25 * (MyRand.randFloat() - 0.5);
+        if(RandomStreams.nextFloat(random) < mutationRate){
+            color += 0.25 * (RandomStreams.nextFloat(random) - 0.5);
         }
     }
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
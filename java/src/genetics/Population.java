@@ -2,11 +2,14 @@ package genetics;
 
 import network.math.Matrix;
 import network.Network;
+import network.NetworkStack;
+import network.RecurrentState;
 import network.layers.DenseLayer;
-import network.math.MyRand;
+import network.math.RandomStreams;
 
 import java.io.*;
 import java.util.Arrays;
+import java.util.SplittableRandom;
 
 /**
  * genetics.Population manager
@@ -32,6 +35,12 @@ public class Population implements Serializable {
     private float elitePercent = 0.1f;
     private float randomPercent = 0.05f;
 
+    // Evaluate brains with int8 weights, see Player.setQuantizedBrain
+    private transient boolean quantizedBrains;
+
+    // Every brain stacked, for getAllActions. Built on first use and refreshed each generation
+    private transient NetworkStack brainStack;
+
     public Population(int populationSize)
     {
         this.players = new Player[populationSize];
@@ -76,9 +85,46 @@ public class Population implements Serializable {
         return currentPlayer.useBrain(inputData);
     }
 
+    /**
+     * Same as getActions(inputData), with a separate recurrent state, for example one per unit
+     */
+    public Matrix getActions(Matrix inputData, RecurrentState state)
+    {
+        return currentPlayer.useBrain(inputData, state);
+    }
+
+    /**
+     * Runs every member's brain on its own row of inputData in one pass, for evaluations that
+     * step the whole population together, such as environments run side by side.
+     * Only evaluates: the current member and the fitnesses are left alone.
+     * The brains keep their hidden state between calls, see resetAllActions.
+     * Always uses float weights, even with setQuantizedBrains
+     * @param inputData One row of inputs per member, in member order
+     * @return One row of outputs per member. Overwritten by the next call
+     */
+    public Matrix getAllActions(Matrix inputData)
+    {
+        if (brainStack == null) {
+            brainStack = new NetworkStack(getBrains());
+        }
+        return brainStack.feedForward(inputData);
+    }
+
+    /**
+     * Zeroes the hidden state used by getAllActions, for the start of an episode
+     */
+    public void resetAllActions()
+    {
+        if (brainStack != null) {
+            brainStack.resetState();
+        }
+    }
+
     /**
      * Genetically recombine fittest individuals
-     * to form the next population
+     * to form the next population.
+     * Each child draws from its own stream, keyed by (epoch, index),
+     * so children come out the same whatever order or thread they are made on
      */
     public void naturalSelection()
     {
@@ -122,37 +168,53 @@ public class Population implements Serializable {
         int numRandom = (int) (randomPercent * populationSize);
 
         for (int i = numElite; i < numElite + numRandom; i++) {
+            SplittableRandom random = RandomStreams.stream(RandomStreams.INDIVIDUAL, epoch, i);
+
             // Choose parents completely randomly
-            Player p1 = players[MyRand.randInt(populationSize)];
-            Player p2 = players[MyRand.randInt(populationSize)];
+            Player p1 = players[random.nextInt(populationSize)];
+            Player p2 = players[random.nextInt(populationSize)];
 
             // Crossover and mutate the baby
-            Player child = p1.crossover(p2);
-            child.mutate(mutationRate, mutationStepSize);
+            Player child = p1.crossover(p2, random);
+            child.mutate(mutationRate, mutationStepSize, random);
             nextPop[i] = child;  // Add to new population
         }
 
         // Create N new baby networks
         // (minus the elite and random already selected)
         for (int i = numElite + numRandom; i < populationSize; i++) {
+            SplittableRandom random = RandomStreams.stream(RandomStreams.INDIVIDUAL, epoch, i);
+
             // Choose parents based on fitness randomly
-            Player p1 = rouletteSelection(roulette);
-            Player p2 = rouletteSelection(roulette);
+            Player p1 = rouletteSelection(roulette, random);
+            Player p2 = rouletteSelection(roulette, random);
 
             // Crossover and mutate the baby
-            Player child = p1.crossover(p2);
-            child.mutate(mutationRate, mutationStepSize);
+            Player child = p1.crossover(p2, random);
+            child.mutate(mutationRate, mutationStepSize, random);
             nextPop[i] = child;  // Add to new population
         }
 
         players = nextPop;
+        setQuantizedBrains(quantizedBrains);
+
+        // The new generation starts its episodes fresh
+        if (brainStack != null) {
+            brainStack.update(getBrains());
+            brainStack.resetState();
+        }
     }
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
 
     public Player rouletteSelection(int[] cumulative)
+    {
+        return rouletteSelection(cumulative, RandomStreams.current());
+    }
+
+    public Player rouletteSelection(int[] cumulative, SplittableRandom random)
     {
         // Max value is the total value (last value of cumulative)
-        int randValue = MyRand.randInt(cumulative[cumulative.length-1]);
+        int randValue = random.nextInt(cumulative[cumulative.length-1]);
         for (int i = 0; i < cumulative.length; i++) {
             if (randValue < cumulative[i]) {
                 return players[i];
@@ -163,6 +225,18 @@ public class Population implements Serializable {
     }
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
 
+    /**
+     * Sets every player, and the ones in later generations, to evaluate their brains with int8 weights.
+     * Meant for replays and tournaments of saved populations, where the brains are only read
+     */
+    public void setQuantizedBrains(boolean quantizedBrains)
+    {
+        this.quantizedBrains = quantizedBrains;
+        for (Player player : players) {
+            player.setQuantizedBrain(quantizedBrains);
+        }
+    }
+
     public int getEpoch() {
         return epoch;
     }
@@ -176,6 +250,16 @@ public class Population implements Serializable {
         return currentPlayer;
     }
 
+    private Network[] getBrains()
+    {
+        Network[] brains = new Network[populationSize];
+        for (int i = 0; i < populationSize; i++)
+        {
+            brains[i] = players[i].getBrain();
+        }
+        return brains;
+    }
+
     public int[] getFitnesses() {
         int[] ret = new int[populationSize];
 
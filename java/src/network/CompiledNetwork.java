@@ -0,0 +1,324 @@
+package network;
+
+import network.layers.DenseLayer;
+import network.layers.LSTMLayer;
+import network.layers.Layer;
+import network.layers.LayerState;
+import network.layers.RecurrentLayer;
+import network.math.Activations;
+import network.math.DenseKernel;
+import network.math.Matrix;
+import network.math.PackedWeights;
+import network.math.QuantizedWeights;
+import network.math.SparseWeights;
+
+/**
+ * An inference plan made by Network.compile.
+ * The layers are flattened into a list of steps with their weights packed and their activations
+ * resolved (including fast math), and run in a loop with a switch instead of calls through Layer.
+ * All buffers live in the state and are allocated up front, so feedForward does not allocate
+ * unless the number of input rows changes.
+ * The plan holds a copy of the weights and never changes, so it can be shared between threads,
+ * each with their own state. Compile again after the network changes.
+ * A quantized plan (Network.quantize) runs dense and recurrent steps with int8 weights,
+ * see QuantizedWeights. LSTM steps stay in floats, since their cell state adds up the rounding error.
+ * Steps whose weights are pruned below SparseWeights.DENSITY_CUTOFF run on the sparse kernel instead
+ */
+public final class CompiledNetwork {
+    private static final int DENSE = 0;
+    private static final int RECURRENT = 1;
+    private static final int LSTM = 2;
+
+    // One entry per step
+    private final int[] kinds;
+    private final int[] inputSizes;
+    private final int[] outputSizes;
+
+    // Activation of dense and recurrent steps. LSTM steps use sigmoids and tanhs
+    private final int[] activations;
+    private final int[] sigmoids;
+    private final int[] tanhs;
+
+    // Packed weights of each step that is not sparse or quantized. An LSTM step has its four gates side by side
+    private final PackedWeights[] weights;
+
+    // Int8 weights of each dense and recurrent step of a quantized plan, null otherwise
+    private final QuantizedWeights[] quantized;
+    private final boolean quantize;
+
+    // Weights of steps that run on the sparse kernel, null otherwise
+    private final SparseWeights[] sparse;
+
+    // Used by feedForward(input)
+    private final RecurrentState defaultState;
+
+    CompiledNetwork(Network network, boolean quantize) {
+        int numSteps = network.getLayers().size();
+        kinds = new int[numSteps];
+        inputSizes = new int[numSteps];
+        outputSizes = new int[numSteps];
+        activations = new int[numSteps];
+        sigmoids = new int[numSteps];
+        tanhs = new int[numSteps];
+        weights = new PackedWeights[numSteps];
+        quantized = new QuantizedWeights[numSteps];
+        this.quantize = quantize;
+        sparse = new SparseWeights[numSteps];
+
+        for (int i = 0; i < numSteps; i++) {
+            Layer layer = network.getLayer(i);
+            inputSizes[i] = layer.getInputSize();
+            outputSizes[i] = layer.getOutputSize();
+            sigmoids[i] = resolve(layer, Activations.SIGMOID);
+            tanhs[i] = resolve(layer, Activations.TANH);
+
+            if (layer instanceof DenseLayer) {
+                kinds[i] = DENSE;
+                activations[i] = resolve(layer, ((DenseLayer) layer).getActivation());
+            } else if (layer instanceof RecurrentLayer) {
+                kinds[i] = RECURRENT;
+                activations[i] = tanhs[i];
+            } else if (layer instanceof LSTMLayer) {
+                kinds[i] = LSTM;
+                activations[i] = Activations.NONE;
+            } else {
+                throw new IllegalArgumentException("Can not compile layer type " + layer.getClass().getSimpleName());
+            }
+
+            if (SparseWeights.useSparse(layer.getWeights())) {
+                sparse[i] = new SparseWeights(layer.getWeights(), layer.getBiases());
+            } else if (quantize && kinds[i] != LSTM) {
+                quantized[i] = new QuantizedWeights(layer.getWeights(), layer.getBiases());
+            } else {
+                weights[i] = new PackedWeights(layer.getWeights(), layer.getBiases());
+            }
+        }
+
+        defaultState = newState();
+    }
+
+    private static int resolve(Layer layer, int activation) {
+        return layer.isFastMath() ? Activations.toFast(activation) : activation;
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    /**
+     * Buffers and recurrent state of one step, for one or more sequences (one row each).
+     * Only the fields for the step's kind are used
+     */
+    private static final class StepState extends LayerState {
+        private final int kind;
+        private final int inputSize;
+        private final int outputSize;
+        private final boolean quantized;
+        private int batch;
+
+        // Dense output
+        private Matrix output;
+
+        // Recurrent and LSTM: two [input | hidden] buffers, see RecurrentLayer.
+        // LSTM puts the hidden state (its last output) first, see LSTMLayer
+        private Matrix[] combinedPair;
+        private int current;
+        private Matrix hidden;
+
+        // Views of the input and hidden parts of each buffer, made once so a step only flips current
+        private Matrix[] inputViews;
+        private Matrix[] hiddenViews;
+
+        // LSTM gate pre-activations and cell state
+        private Matrix gates;
+        private Matrix cellState;
+
+        // Quantized steps: one input row rounded to int8
+        private byte[] quantizedRow;
+
+        private StepState(int kind, int inputSize, int outputSize, boolean quantized, int batch) {
+            this.kind = kind;
+            this.inputSize = inputSize;
+            this.outputSize = outputSize;
+            this.quantized = quantized;
+            if (quantized) {
+                quantizedRow = new byte[kind == RECURRENT ? inputSize + outputSize : inputSize];
+            }
+            allocate(batch);
+        }
+
+        private void allocate(int batch) {
+            this.batch = batch;
+            switch (kind) {
+                case DENSE:
+                    output = new Matrix(batch, outputSize);
+                    break;
+                case RECURRENT:
+                    combinedPair = new Matrix[] {new Matrix(batch, inputSize + outputSize), new Matrix(batch, inputSize + outputSize)};
+                    inputViews = new Matrix[2];
+                    hiddenViews = new Matrix[2];
+                    for (int b = 0; b < 2; b++) {
+                        inputViews[b] = combinedPair[b].subMatrix(0, 0, batch, inputSize);
+                        hiddenViews[b] = combinedPair[b].subMatrix(0, inputSize, batch, outputSize);
+                    }
+                    current = 0;
+                    hidden = hiddenViews[current];
+                    break;
+                case LSTM:
+                    combinedPair = new Matrix[] {new Matrix(batch, outputSize + inputSize), new Matrix(batch, outputSize + inputSize)};
+                    inputViews = new Matrix[2];
+                    hiddenViews = new Matrix[2];
+                    for (int b = 0; b < 2; b++) {
+                        inputViews[b] = combinedPair[b].subMatrix(0, outputSize, batch, inputSize);
+                        hiddenViews[b] = combinedPair[b].subMatrix(0, 0, batch, outputSize);
+                    }
+                    current = 0;
+                    hidden = hiddenViews[current];
+                    gates = new Matrix(batch, 4 * outputSize);
+                    cellState = new Matrix(batch, outputSize);
+                    break;
+            }
+        }
+
+        // Rows that exist in both batch sizes keep their state
+        private void resize(int batch) {
+            Matrix oldHidden = hidden;
+            Matrix oldCell = cellState;
+
+            allocate(batch);
+
+            if (kind != DENSE) {
+                copyRows(oldHidden, hidden);
+            }
+            if (kind == LSTM) {
+                copyRows(oldCell, cellState);
+            }
+        }
+
+        private static void copyRows(Matrix from, Matrix to) {
+            int keep = Math.min(from.getRows(), to.getRows());
+            from.subMatrix(0, 0, keep, from.getCols()).copyInto(to.subMatrix(0, 0, keep, to.getCols()));
+        }
+
+        @Override
+        public void reset() {
+            if (kind != DENSE) {
+                hidden.clear();
+            }
+            if (kind == LSTM) {
+                cellState.clear();
+            }
+        }
+
+        @Override
+        public LayerState copy() {
+            StepState copy = new StepState(kind, inputSize, outputSize, quantized, batch);
+            if (kind != DENSE) {
+                hidden.copyInto(copy.hidden);
+            }
+            if (kind == LSTM) {
+                cellState.copyInto(copy.cellState);
+            }
+            return copy;
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    /**
+     * @return A new, zeroed state with buffers for one input row
+     */
+    public RecurrentState newState() {
+        return newState(1);
+    }
+
+    /**
+     * @return A new, zeroed state with buffers for batch input rows. It only works with this plan
+     */
+    public RecurrentState newState(int batch) {
+        LayerState[] states = new LayerState[kinds.length];
+        for (int i = 0; i < kinds.length; i++) {
+            states[i] = new StepState(kinds[i], inputSizes[i], outputSizes[i], quantized[i] != null, batch);
+        }
+        return new RecurrentState(this, states);
+    }
+
+    /**
+     * Runs the plan with its own state, for callers that run one sequence at a time
+     */
+    public Matrix feedForward(Matrix input) {
+        return feedForward(input, defaultState);
+    }
+
+    /**
+     * @param input One sample per row
+     * @param state State from newState of this plan
+     * @return The output of the last step, which belongs to the state
+     * and is overwritten by the next call to feedForward with it
+     */
+    public Matrix feedForward(Matrix input, RecurrentState state) {
+        state.checkOwner(this);
+        if (state.numLayers() != kinds.length) {
+            throw new IllegalArgumentException(String.format("State has %d steps, plan has %d", state.numLayers(), kinds.length));
+        }
+
+        int batch = input.getRows();
+        Matrix x = input;
+        for (int i = 0; i < kinds.length; i++) {
+            StepState s = (StepState) state.getLayerState(i);
+            if (s.batch != batch) {
+                s.resize(batch);
+            }
+
+            switch (kinds[i]) {
+                case DENSE:
+                    x = multiply(i, x, activations[i], s.output, s);
+                    break;
+                case RECURRENT:
+                    x = recurrent(i, x, s);
+                    break;
+                case LSTM:
+                    x = lstm(i, x, s);
+                    break;
+            }
+        }
+        return x;
+    }
+
+    // Same as RecurrentLayer.feedForward
+    private Matrix recurrent(int i, Matrix input, StepState s) {
+        Matrix combined = s.combinedPair[s.current];
+        input.copyInto(s.inputViews[s.current]);
+
+        s.current = 1 - s.current;
+        s.hidden = s.hiddenViews[s.current];
+        return multiply(i, combined, activations[i], s.hidden, s);
+    }
+
+    // Runs the kernel for the weights step i was compiled with
+    private Matrix multiply(int i, Matrix input, int activation, Matrix out, StepState s) {
+        if (sparse[i] != null) {
+            return DenseKernel.feedForward(input, sparse[i], activation, out);
+        }
+        if (quantized[i] != null) {
+            return DenseKernel.feedForward(input, quantized[i], activation, s.quantizedRow, out);
+        }
+        return DenseKernel.feedForward(input, weights[i], activation, out);
+    }
+
+    /**
+     * @return Whether dense and recurrent steps run with int8 weights
+     */
+    public boolean isQuantized() {
+        return quantize;
+    }
+
+    // Same as LSTMLayer.feedForward
+    private Matrix lstm(int i, Matrix input, StepState s) {
+        Matrix combined = s.combinedPair[s.current];
+        input.copyInto(s.inputViews[s.current]);
+
+        multiply(i, combined, Activations.NONE, s.gates, s);
+
+        s.current = 1 - s.current;
+        s.hidden = s.hiddenViews[s.current];
+        LSTMLayer.step(s.gates, s.cellState, s.hidden, sigmoids[i], tanhs[i]);
+        return s.hidden;
+    }
+}
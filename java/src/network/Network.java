@@ -3,14 +3,34 @@ package network;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.SplittableRandom;
 
 import network.layers.Layer;
+import network.layers.LayerState;
 import network.math.Matrix;
-import network.math.MyRand;
+import network.math.Mutation;
+import network.math.NoiseTable;
+import network.math.RandomStreams;
 
 public class Network implements Serializable {
     private ArrayList<Layer> layers;
 
+    // Every parameter of every layer, in chromosome order.
+    // The layers' weights and biases are views into it, so this is the chromosome
+    private float[] parameters = new float[0];
+
+    // Use approximate activations in every layer
+    private boolean fastMath;
+
+    // Leave pruned (zero) parameters out of mutation, see prune
+    private boolean keepPruned;
+
+    // Gradients summed by backward, laid out like parameters. Made on first use
+    private transient float[] gradients;
+
+    // Holds the one gradient passed to backward(outputGradient), so it does not allocate
+    private transient Matrix[] newestGradient;
+
     public Network()
     {
         this.layers = new ArrayList<Layer>(4);
@@ -18,9 +38,98 @@ public class Network implements Serializable {
 
     public void addLayer(Layer layer)
     {
+        layer.setFastMath(fastMath);
+        layer.setKeepPruned(keepPruned);
         layers.add(layer);
+
+        // Grow the buffer and move every layer into it
+        float[] grown = new float[parameters.length + layer.numParams()];
+        moveLayersInto(grown);
+    }
+
+    private void moveLayersInto(float[] buffer)
+    {
+        int index = 0;
+        for (Layer l : layers)
+        {
+            l.moveInto(buffer, index);
+            index += l.numParams();
+        }
+        parameters = buffer;
+    }
+
+    /**
+     * Switches every layer between exact and approximate sigmoid / tanh.
+     * The approximations are within Activations.FAST_TANH_MAX_ERROR,
+     * which is plenty for evaluating networks in the genetic algorithm.
+     * Children from crossover and clones keep this setting
+     */
+    public void setFastMath(boolean fastMath)
+    {
+        this.fastMath = fastMath;
+        for (Layer layer : layers)
+        {
+            layer.setFastMath(fastMath);
+        }
+    }
+
+    public boolean isFastMath()
+    {
+        return fastMath;
+    }
+
+    /**
+     * Sets the truncated backpropagation window of every layer, see Layer.setBackpropWindow
+     */
+    public void setBackpropWindow(int steps)
+    {
+        for (Layer layer : layers)
+        {
+            layer.setBackpropWindow(steps);
+        }
+    }
+
+    /**
+     * Zeroes every weight smaller in magnitude than threshold, see Layer.prune
+     * @return Number of weights that were zeroed
+     */
+    public int prune(float threshold)
+    {
+        int pruned = 0;
+        for (Layer layer : layers)
+        {
+            pruned += layer.prune(threshold);
+        }
+        return pruned;
+    }
+
+    /**
+     * With keepPruned set, mutate leaves parameters that are exactly 0 alone,
+     * so weights removed by prune stay removed across generations.
+     * This goes by value, not position, so a bias that happens to be exactly 0 stays 0 as well.
+     * prune never zeroes biases and random ones are almost never exactly 0, so this rarely matters.
+     * Children from crossover and clones keep this setting
+     */
+    public void setKeepPruned(boolean keepPruned)
+    {
+        this.keepPruned = keepPruned;
+        for (Layer layer : layers)
+        {
+            layer.setKeepPruned(keepPruned);
+        }
+    }
+
+    public boolean isKeepPruned()
+    {
+        return keepPruned;
     }
 
+    /**
+     * @param inputData One sample per row. A batch of B rows gives B rows of output,
+     * and recurrent layers keep a separate state for each row, matched by row index.
+     * When the number of rows changes, rows that exist in both keep their state
+     * @return The output of the last layer, which the layer owns (see Layer.feedForward)
+     */
     public Matrix feedForward(Matrix inputData)
     {
         // Propagate the input through the network
@@ -33,6 +142,171 @@ public class Network implements Serializable {
 
         return next;
     }
+
+    /**
+     * Same as feedForward(inputData), reading and writing the given state instead of the layers' own.
+     * The network is only read, so units, episodes or threads can share it, each with their own state
+     * @param state State from newState of this network
+     * @return The output of the last layer, which belongs to the state
+     */
+    public Matrix feedForward(Matrix inputData, RecurrentState state)
+    {
+        state.checkOwner(this);
+        if (state.numLayers() != layers.size()) {
+            throw new IllegalArgumentException(String.format("State has %d layers, network has %d", state.numLayers(), layers.size()));
+        }
+
+        Matrix next = inputData;
+        for (int i = 0; i < layers.size(); i++)
+        {
+            next = layers.get(i).feedForward(next, state.getLayerState(i));
+        }
+
+        return next;
+    }
+
+    /**
+     * Backpropagates through the last feedForward(inputData), adding the gradient of every parameter
+     * into getGradients. Call zeroGradients first to start a new sum.
+     * The layers only keep what backward needs while a window is set, see setBackpropWindow
+     * @param outputGradient Gradient of the loss with respect to the network's newest output
+     * @return Gradient of the loss with respect to the newest input, which belongs to the first layer
+     */
+    public Matrix backward(Matrix outputGradient)
+    {
+        if (newestGradient == null)
+        {
+            newestGradient = new Matrix[1];
+        }
+        newestGradient[0] = outputGradient;
+
+        float[] g = getGradients();
+        int index = parameters.length;
+
+        Matrix[] next = newestGradient;
+        for (int i = layers.size() - 1; i >= 0; i--)
+        {
+            Layer layer = layers.get(i);
+            index -= layer.numParams();
+            next = layer.backward(next, g, index);
+        }
+        return next[0];
+    }
+
+    /**
+     * Same as backward(outputGradient), through the last feedForward(inputData, state)
+     * @return Gradient of the loss with respect to the newest input, which belongs to the state
+     */
+    public Matrix backward(Matrix outputGradient, RecurrentState state)
+    {
+        state.newestGradient[0] = outputGradient;
+        return backward(state.newestGradient, state)[0];
+    }
+
+    /**
+     * Backpropagates gradients of the outputs of several steps, for losses on every step of a sequence.
+     * Each layer passes the input gradients of every kept step to the layer below, see Layer.backward
+     * @param outputGradients Gradient of the loss with respect to the output of each step, by age (0 is the newest).
+     * Null entries count as 0
+     * @return Gradient of the loss with respect to the input of each kept step, by age, which belongs to the state
+     */
+    public Matrix[] backward(Matrix[] outputGradients, RecurrentState state)
+    {
+        state.checkOwner(this);
+        if (state.numLayers() != layers.size()) {
+            throw new IllegalArgumentException(String.format("State has %d layers, network has %d", state.numLayers(), layers.size()));
+        }
+
+        float[] g = getGradients();
+        int index = parameters.length;
+
+        Matrix[] next = outputGradients;
+        for (int i = layers.size() - 1; i >= 0; i--)
+        {
+            Layer layer = layers.get(i);
+            index -= layer.numParams();
+            next = layer.backward(next, state.getLayerState(i), g, index);
+        }
+        return next;
+    }
+
+    /**
+     * @return The gradients summed by backward, in getChromosome order
+     */
+    public float[] getGradients()
+    {
+        if (gradients == null || gradients.length != parameters.length)
+        {
+            gradients = new float[parameters.length];
+        }
+        return gradients;
+    }
+
+    public void zeroGradients()
+    {
+        Arrays.fill(getGradients(), 0);
+    }
+
+    /**
+     * Takes one gradient descent step: every parameter moves by -learningRate times its gradient.
+     * With keepPruned, pruned parameters stay at 0
+     */
+    public void applyGradients(float learningRate)
+    {
+        float[] g = getGradients();
+        for (int i = 0; i < parameters.length; i++)
+        {
+            if (!keepPruned || parameters[i] != 0)
+            {
+                parameters[i] -= learningRate * g[i];
+            }
+        }
+        parametersChanged();
+    }
+
+    /**
+     * @return An inference plan with a copy of the current weights, see CompiledNetwork.
+     * This network stays the genome, compile again after it changes
+     */
+    public CompiledNetwork compile()
+    {
+        return new CompiledNetwork(this, false);
+    }
+
+    /**
+     * @return An inference plan like compile, with the weights of dense and recurrent layers rounded to int8.
+     * Outputs are within rounding error of the network's. Meant for evaluating networks that no longer
+     * change, such as replays of a saved population, where reading the weights is most of the work
+     */
+    public CompiledNetwork quantize()
+    {
+        return new CompiledNetwork(this, true);
+    }
+
+    /**
+     * @return A new, zeroed state for running this network, see feedForward(inputData, state).
+     * It only works with this network
+     */
+    public RecurrentState newState()
+    {
+        LayerState[] states = new LayerState[layers.size()];
+        for (int i = 0; i < layers.size(); i++)
+        {
+            states[i] = layers.get(i).newState();
+        }
+        return new RecurrentState(this, states);
+    }
+
+    /**
+     * Zeroes the state of every recurrent layer, for the start of an episode
+     */
+    public void resetState()
+    {
+        for (Layer layer : layers)
+        {
+            layer.resetState();
+        }
+    }
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
 
 //    /**
@@ -55,68 +329,163 @@ public class Network implements Serializable {
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
 
     /**
-     * @return Network parameters flattened into an array
+     * @return A copy of the network parameters flattened into an array
      */
     public float[] getChromosome()
     {
-        float[] chromosome = new float[numParams()];
+        return parameters.clone();
+    }
 
-        // Index to insert next layer into
-        int index = 0;
-        for (Layer l : layers)
-        {
-            l.insertIntoArray(chromosome, index);
-            index += l.numParams();
-        }
+    /**
+     * @return The array the layers keep their parameters in, in getChromosome order.
+     * Writing to it changes the network, call parametersChanged afterwards
+     */
+    public float[] getParameterBuffer()
+    {
+        return parameters;
+    }
 
-        return chromosome;
+    /**
+     * Writes the network parameters into arr, in the same order as getChromosome
+     */
+    public void insertIntoArray(float[] arr, int index)
+    {
+        System.arraycopy(parameters, 0, arr, index, parameters.length);
     }
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
 
     public Network crossover(Network other) {
-        Network child = new Network();
+        return crossover(other, RandomStreams.current());
+    }
 
+    public Network crossover(Network other, SplittableRandom random) {
         // Number of values in network
         int params = numParams();
 
-        // Array representation of weights and biases
-        float[] thisGenes = getChromosome();
-        float[] otherGenes = other.getChromosome();
+        // Random crossing point
+        int swapPoint = random.nextInt(params);
+
+        // Both parents already hold their chromosomes in one array each,
+        // so the child's genes are two copies straight out of them.
+        // The child's layers are views into its genes, so they are the only allocation
         float[] childGenes = new float[params];
+        System.arraycopy(parameters, 0, childGenes, 0, swapPoint);
+        System.arraycopy(other.parameters, swapPoint, childGenes, swapPoint, params - swapPoint);
 
-        // Random crossing point
-        int swapPoint = MyRand.randInt(params);
+        // Convert chromosome back into a network
+        return fromChromosome(childGenes);
+    }
 
-        // Do the swap
-        for (int i = 0; i < swapPoint; i++)
-        {
-            childGenes[i] = thisGenes[i];
+    /**
+     * Builds a network with the same layers as this one from a chromosome,
+     * for example a row copied out of an OffHeapMatrix of a whole population
+     * @param genes Parameters in getChromosome order. The new network uses it as its parameter buffer
+     */
+    public Network fromChromosome(float[] genes)
+    {
+        if (genes.length != numParams()) {
+            throw new IllegalArgumentException(String.format("Chromosome has %d values, network has %d", genes.length, numParams()));
         }
 
-        for(int i = swapPoint; i < params; i++)
-        {
-            childGenes[i] = otherGenes[i];
-        }
+        Network network = new Network();
+        network.setFastMath(fastMath);
+        network.setKeepPruned(keepPruned);
 
-        // Convert chromosome back into a network
+        // The layers are already views into genes, so they are added without moving them
         int index = 0;
         for (Layer l : this.layers) {
-            Layer newLayer = l.fromLargerArray(childGenes, index);
+            Layer newLayer = l.fromLargerArray(genes, index);
+            newLayer.setFastMath(fastMath);
+            newLayer.setKeepPruned(keepPruned);
+            newLayer.setBackpropWindow(l.getBackpropWindow());
 
             index += newLayer.numParams();
-            child.addLayer(newLayer);
+            network.layers.add(newLayer);
         }
-
-        return child;
+        network.parameters = genes;
+        return network;
     }
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
 
+    /**
+     * Mutates every parameter in the network as one chromosome, straight in the parameter buffer,
+     * so only the values that are picked get visited (see Mutation)
+     */
     public void mutate(float mutationRate, float mutationSize)
+    {
+        mutate(mutationRate, mutationSize, RandomStreams.current());
+    }
+
+    public void mutate(float mutationRate, float mutationSize, SplittableRandom random)
+    {
+        Mutation.mutate(parameters, 0, parameters.length, mutationRate, mutationSize, keepPruned, random);
+        parametersChanged();
+    }
+
+    /**
+     * Mutates with Gaussian noise read from the table instead of uniform noise
+     */
+    public void mutate(float mutationRate, float mutationSize, NoiseTable table, SplittableRandom random)
+    {
+        Mutation.mutate(parameters, 0, parameters.length, mutationRate, mutationSize, keepPruned, table, random);
+        parametersChanged();
+    }
+
+    /**
+     * Adds sigma times the noise at [offset, offset + numParams()) to every parameter, in getChromosome order.
+     * Another network with the same parameters and table gets the same result from the same offset
+     */
+    public void perturb(NoiseTable table, int offset, float sigma)
+    {
+        table.addTo(parameters, 0, parameters.length, offset, sigma);
+        parametersChanged();
+    }
+
+    /**
+     * Tells every layer its parameters were changed from outside, see Layer.parametersChanged
+     */
+    public void parametersChanged()
     {
         for (Layer layer : this.layers) {
-            layer.mutate(mutationRate, mutationSize);
+            layer.parametersChanged();
         }
+    }
 
+    /**
+     * @return A number that changes whenever the parameters of any layer change, see Layer.getVersion
+     */
+    public int getVersion()
+    {
+        int version = 0;
+        for (Layer layer : this.layers) {
+            version += layer.getVersion();
+        }
+        return version;
+    }
+
+    /**
+     * @return Whether any layer keeps state between inputs
+     */
+    public boolean isRecurrent()
+    {
+        for (Layer layer : this.layers) {
+            if (layer.isRecurrent()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The parameter matrices of every layer, in layer order
+     */
+    public Matrix[] getParameters()
+    {
+        ArrayList<Matrix> params = new ArrayList<Matrix>();
+        for (Layer layer : this.layers) {
+            params.addAll(Arrays.asList(layer.getParameters()));
+        }
+        return params.toArray(new Matrix[0]);
     }
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
 
@@ -162,23 +531,13 @@ public class Network implements Serializable {
 
     public int numParams()
     {
-        int params = 0;
-        for (Layer l : layers)
-        {
-            params += l.numParams();
-        }
-        return params;
+        return parameters.length;
     }
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
 
     public Network clone()
     {
-        Network ret = new Network();
-        for (Layer layer : this.layers)
-        {
-            ret.addLayer(layer.clone());
-        }
-        return ret;
+        return fromChromosome(parameters.clone());
     }
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
 
@@ -0,0 +1,159 @@
+package network;
+
+import network.layers.DenseLayer;
+import network.layers.Layer;
+import network.layers.RecurrentLayer;
+import network.math.Activations;
+import network.math.DenseKernel;
+import network.math.Matrix;
+
+/**
+ * The networks of a whole population, stacked layer by layer.
+ * Every member must have the same layers, but can have different weights.
+ * feedForward takes one input row per member and runs each row through its own network,
+ * so a generation can be evaluated in lockstep with one kernel call per layer
+ * instead of one Network.feedForward per member.
+ * The weights are copied in, so call update after the members change.
+ * Population.getAllActions evaluates a whole population through this
+ */
+public class NetworkStack {
+    private final int members;
+
+    // One entry per layer
+    private final Layer[] template;
+    private final int[] inputSizes;
+    private final int[] outputSizes;
+    private final int[] activations;
+    private final boolean[] recurrent;
+
+    // Packed weights of every member, see DenseKernel.feedForwardStacked
+    private final float[][] weights;
+
+    // Hidden state of every member for recurrent layers, one row per member
+    private final Matrix[] states;
+
+    // Reused buffers, so feedForward does not allocate
+    private final Matrix[] combined;
+    private final Matrix[] outputs;
+
+    /**
+     * @param networks Members to stack. Only dense and recurrent layers are supported
+     */
+    public NetworkStack(Network[] networks) {
+        if (networks.length == 0) {
+            throw new IllegalArgumentException("Can not stack zero networks");
+        }
+
+        members = networks.length;
+        int numLayers = networks[0].getLayers().size();
+
+        template = new Layer[numLayers];
+        inputSizes = new int[numLayers];
+        outputSizes = new int[numLayers];
+        activations = new int[numLayers];
+        recurrent = new boolean[numLayers];
+        weights = new float[numLayers][];
+        states = new Matrix[numLayers];
+        combined = new Matrix[numLayers];
+        outputs = new Matrix[numLayers];
+
+        for (int l = 0; l < numLayers; l++) {
+            Layer layer = networks[0].getLayer(l);
+            template[l] = layer;
+            inputSizes[l] = layer.getInputSize();
+            outputSizes[l] = layer.getOutputSize();
+
+            if (layer instanceof DenseLayer) {
+                activations[l] = ((DenseLayer) layer).getActivation();
+                outputs[l] = new Matrix(members, outputSizes[l]);
+            } else if (layer instanceof RecurrentLayer) {
+                activations[l] = Activations.TANH;
+                recurrent[l] = true;
+                states[l] = new Matrix(members, outputSizes[l]);
+                combined[l] = new Matrix(members, inputSizes[l] + outputSizes[l]);
+            } else {
+                throw new IllegalArgumentException("Can not stack layer type " + layer.getClass().getSimpleName());
+            }
+
+            if (layer.isFastMath()) {
+                activations[l] = Activations.toFast(activations[l]);
+            }
+
+            weights[l] = new float[members * layer.numParams()];
+        }
+
+        update(networks);
+    }
+
+    /**
+     * Copies the weights of every member in again, after mutation or selection.
+     * Each member's slice of a layer is that layer's chromosome
+     */
+    public void update(Network[] networks) {
+        if (networks.length != members) {
+            throw new IllegalArgumentException(String.format("Stack has %d members, got %d networks", members, networks.length));
+        }
+
+        for (int i = 0; i < members; i++) {
+            update(i, networks[i]);
+        }
+    }
+
+    /**
+     * Copies the weights of one member in again
+     */
+    public void update(int member, Network network) {
+        if (network.getLayers().size() != template.length) {
+            throw new IllegalArgumentException("Network does not have the same layers as the stack");
+        }
+
+        for (int l = 0; l < template.length; l++) {
+            Layer layer = network.getLayer(l);
+            if (layer.getClass() != template[l].getClass() || layer.getInputSize() != inputSizes[l]
+                    || layer.getOutputSize() != outputSizes[l]) {
+                throw new IllegalArgumentException(String.format("Layer %d does not have the same shape as the stack", l));
+            }
+            layer.insertIntoArray(weights[l], member * layer.numParams());
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    /**
+     * @param inputs One row of inputs per member
+     * @return One row of outputs per member. This matrix belongs to the stack
+     * and is overwritten by the next call to feedForward
+     */
+    public Matrix feedForward(Matrix inputs) {
+        if (inputs.getRows() != members) {
+            throw new IndexOutOfBoundsException(String.format("Stack has %d members, got %d input rows", members, inputs.getRows()));
+        }
+
+        Matrix x = inputs;
+        for (int l = 0; l < template.length; l++) {
+            if (recurrent[l]) {
+                // Each member's input next to its own hidden state
+                x.concatenateRowInto(states[l], combined[l]);
+                x = DenseKernel.feedForwardStacked(combined[l], weights[l], inputSizes[l] + outputSizes[l], outputSizes[l],
+                        activations[l], states[l]);
+            } else {
+                x = DenseKernel.feedForwardStacked(x, weights[l], inputSizes[l], outputSizes[l], activations[l], outputs[l]);
+            }
+        }
+        return x;
+    }
+
+    /**
+     * Zeroes the hidden state of every member, for the start of an episode
+     */
+    public void resetState() {
+        for (Matrix state : states) {
+            if (state != null) {
+                state.clear();
+            }
+        }
+    }
+
+    public int getMembers() {
+        return members;
+    }
+}
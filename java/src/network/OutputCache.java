@@ -0,0 +1,242 @@
+package network;
+
+import network.math.Matrix;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the outputs of a network for the inputs it has seen, up to a fixed number,
+ * dropping the least recently used one when full.
+ * Observations like the int[] states of QTableInterface and CrossEntropyAgentInterface
+ * repeat constantly, so most feedForwards become one hash lookup.
+ * Only for networks without recurrent layers, whose output depends on the input alone.
+ * The cache empties itself when the network's parameters, fast math setting or layers change
+ * (see Network.getVersion), so mutate, perturb, prune and setFastMath need nothing extra.
+ * Adding a recurrent layer afterwards makes the next lookup throw. A cache is not thread safe
+ */
+public class OutputCache {
+    private final Network network;
+    private final int capacity;
+
+    // In access order, so the first entry is the least recently used
+    private final LinkedHashMap<Key, Matrix> outputs;
+
+    // Filled with each input to look it up, and only copied when a new entry is stored
+    private final Key probe = new Key();
+
+    // Version of the network the cached outputs came from
+    private int version;
+
+    private long hits;
+    private long misses;
+    private long invalidations;
+
+    /**
+     * Input of one lookup, compared by value. Floats are compared by their bits
+     */
+    private static final class Key {
+        private int rows;
+        private int[] values;
+        private int length;
+        private int hash;
+
+        private Key() {
+            values = new int[16];
+        }
+
+        private Key(int rows, int[] values, int hash) {
+            this.rows = rows;
+            this.values = values;
+            this.length = values.length;
+            this.hash = hash;
+        }
+
+        private void set(int[] observation) {
+            ensureLength(observation.length);
+            System.arraycopy(observation, 0, values, 0, length);
+            rows = 1;
+            rehash();
+        }
+
+        private void set(Matrix input) {
+            ensureLength(input.numParams());
+            int n = 0;
+            for (int i = 0; i < input.getRows(); i++) {
+                for (int j = 0; j < input.getCols(); j++) {
+                    values[n++] = Float.floatToIntBits(input.get(i, j));
+                }
+            }
+            // Set apart from int observations with the same values
+            rows = -input.getRows();
+            rehash();
+        }
+
+        private void ensureLength(int length) {
+            if (values.length < length) {
+                values = new int[length];
+            }
+            this.length = length;
+        }
+
+        private void rehash() {
+            int h = rows;
+            for (int i = 0; i < length; i++) {
+                h = 31 * h + values[i];
+            }
+            hash = h;
+        }
+
+        private Key copy() {
+            return new Key(rows, Arrays.copyOf(values, length), hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            if (hash != other.hash || rows != other.rows || length != other.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (values[i] != other.values[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @param network Network to cache the outputs of. Can not have recurrent layers
+     * @param capacity Most outputs to keep
+     */
+    public OutputCache(Network network, final int capacity) {
+        if (network.isRecurrent()) {
+            throw new IllegalArgumentException("Can not cache the outputs of a network with recurrent layers");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive, got " + capacity);
+        }
+
+        this.network = network;
+        this.capacity = capacity;
+        this.outputs = new LinkedHashMap<Key, Matrix>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Matrix> eldest) {
+                return size() > capacity;
+            }
+        };
+        this.version = network.getVersion();
+    }
+
+    /**
+     * Same as network.feedForward on the observation as a 1 x n row
+     * @return The output, which belongs to the cache and must not be changed
+     */
+    public Matrix feedForward(int[] observation) {
+        probe.set(observation);
+        Matrix output = lookup();
+        if (output == null) {
+            Matrix input = new Matrix(1, observation.length);
+            for (int i = 0; i < observation.length; i++) {
+                input.set(0, i, observation[i]);
+            }
+            output = store(network.feedForward(input));
+        }
+        return output;
+    }
+
+    /**
+     * Same as network.feedForward(input)
+     * @return The output, which belongs to the cache and must not be changed
+     */
+    public Matrix feedForward(Matrix input) {
+        probe.set(input);
+        Matrix output = lookup();
+        if (output == null) {
+            output = store(network.feedForward(input));
+        }
+        return output;
+    }
+
+    private Matrix lookup() {
+        int current = network.getVersion();
+        if (current != version) {
+            // Adding a layer changes the version too, so this is where a new recurrent one shows up
+            if (network.isRecurrent()) {
+                throw new IllegalStateException("Can not cache the outputs of a network with recurrent layers");
+            }
+            clear();
+            version = current;
+            invalidations++;
+        }
+
+        Matrix output = outputs.get(probe);
+        if (output != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return output;
+    }
+
+    // The network's output is overwritten by its next feedForward, so the cache keeps a copy
+    private Matrix store(Matrix output) {
+        Matrix copy = output.clone();
+        outputs.put(probe.copy(), copy);
+        return copy;
+    }
+
+    /**
+     * Drops every cached output. Hit and miss counts are kept
+     */
+    public void clear() {
+        outputs.clear();
+    }
+
+    public int size() {
+        return outputs.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return Number of times the network changed and the cache was emptied
+     */
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * @return Fraction of lookups that found their output, or 0 before the first one
+     */
+    public float getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (float) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses (%.1f%% hit rate), %d/%d cached, %d invalidations",
+                hits, misses, 100 * getHitRate(), size(), capacity, invalidations);
+    }
+}
@@ -0,0 +1,63 @@
+package network;
+
+import network.layers.Layer;
+import network.layers.LayerState;
+import network.math.Matrix;
+
+/**
+ * The state of one sequence running through a Network, one LayerState per layer.
+ * Get one from Network.newState and pass it to feedForward. The network itself only holds weights,
+ * so several units, episodes or threads can share it, each with their own state.
+ * States can be reset for a new episode, copied, or kept in a pool and reused.
+ * A state only works with the network or plan that made it
+ */
+public class RecurrentState {
+    // The Network or CompiledNetwork that made this state
+    private final Object owner;
+    private final LayerState[] layers;
+
+    // Holds the one gradient passed to Network.backward(Matrix, RecurrentState), so it does not allocate
+    final Matrix[] newestGradient = new Matrix[1];
+
+    RecurrentState(Object owner, LayerState[] layers) {
+        this.owner = owner;
+        this.layers = layers;
+    }
+
+    /**
+     * Throws if this state was not made by network, since each network or plan keeps different buffers in its states
+     */
+    void checkOwner(Object network) {
+        if (owner != network) {
+            throw new IllegalArgumentException("State was made by a different network");
+        }
+    }
+
+    /**
+     * Zeroes the state of every layer, for the start of an episode
+     */
+    public void reset() {
+        for (LayerState state : layers) {
+            state.reset();
+        }
+    }
+
+    /**
+     * @return A separate state that continues from the same values
+     */
+    public RecurrentState copy() {
+        LayerState[] copies = new LayerState[layers.length];
+        for (int i = 0; i < layers.length; i++) {
+            copies[i] = layers[i].copy();
+        }
+        return new RecurrentState(owner, copies);
+    }
+
+    public LayerState getLayerState(int index) {
+        return layers[index];
+    }
+
+    public int numLayers() {
+        return layers.length;
+    }
+}
@@ -2,7 +2,10 @@ package network.layers;
 
 import network.Network;
 import network.math.Activations;
+import network.math.DenseKernel;
 import network.math.Matrix;
+import network.math.PackedWeights;
+import network.math.SparseWeights;
 
 /***
 A fully connected layer in a
@@ -15,6 +18,54 @@ public class DenseLayer extends Layer {
 
     private int activation;
 
+    // Inference copy of the weights, repacked on the next feedForward after they change
+    private transient volatile PackedWeights packed;
+
+    // Used instead of packed while pruning leaves the weights sparse enough, see SparseWeights
+    private transient volatile SparseWeights sparse;
+    private transient volatile boolean packedStale;
+
+    /**
+     * A dense layer has no recurrent state, only its reused buffers.
+     * The last steps are kept for backward while a backprop window is set
+     */
+    private static class State extends LayerState {
+        private Matrix output;
+
+        // Last steps for backward: the input and the output
+        private StepHistory history;
+
+        // Used by backward. inputGradients holds one matrix per step, and stepGradients is what backward returns
+        private Matrix delta;
+        private Matrix[] inputGradients;
+        private Matrix[] stepGradients;
+
+        // Made on the first backward, and again if the window or batch size changes
+        private void allocateBackward(int window, int batch, int inputSize, int outputSize) {
+            if (inputGradients != null && inputGradients.length == window && delta.getRows() == batch) {
+                return;
+            }
+            delta = new Matrix(batch, outputSize);
+            inputGradients = new Matrix[window];
+            for (int age = 0; age < window; age++) {
+                inputGradients[age] = new Matrix(batch, inputSize);
+            }
+            stepGradients = new Matrix[window];
+        }
+
+        @Override
+        public void reset() {
+            if (history != null) {
+                history.clear();
+            }
+        }
+
+        @Override
+        public LayerState copy() {
+            return new State();
+        }
+    }
+
     public DenseLayer(int inputSize, int outputSize, String activation)
     {
         this.inputSize = inputSize;
@@ -51,19 +102,118 @@ public class DenseLayer extends Layer {
     }
 
     @Override
-    public Matrix feedForward(Matrix input)
+    public Matrix feedForward(Matrix input, LayerState layerState)
     {
+        State state = (State) layerState;
+
         // Order of multiply is due to choosing layers to be row vectors
         // Instead of col vectors
-        Matrix out = input.dot(weights).add(biases);
-        Activations.applyActivation(out, this.activation);
-        return out;
+        int batch = input.getRows();
+        state.output = ensureSize(state.output, batch, outputSize);
+        multiply(input, resolveActivation(activation), state.output);
+
+        // Kept for backward, since the caller may reuse its input.
+        // Only when training, so evolution does not pay for the copy
+        if (backpropWindow > 0) {
+            if (state.history == null || !state.history.fits(backpropWindow, batch)) {
+                state.history = new StepHistory(backpropWindow, batch, inputSize, outputSize);
+            }
+            state.history.record();
+            input.copyInto(state.history.newest(0));
+            state.output.copyInto(state.history.newest(1));
+        }
+        return state.output;
     }
 
+    /**
+     * Backpropagates each kept step that has an output gradient on its own, since a dense layer has no state
+     * linking the steps. Allocates nothing after the first call
+     */
     @Override
-    public void mutate(float mutationRate, float mutationSize) {
-        weights.mutate(mutationRate, mutationSize);
-        biases.mutate(mutationRate, mutationSize);
+    public Matrix[] backward(Matrix[] outputGradients, LayerState layerState, float[] gradients, int index) {
+        State state = (State) layerState;
+        StepHistory history = state.history;
+        if (history == null || history.size() == 0) {
+            throw new IllegalStateException("No input to backpropagate through, set a backprop window before feedForward");
+        }
+
+        int batch = history.getBatch();
+        state.allocateBackward(history.getWindow(), batch, inputSize, outputSize);
+        int act = resolveActivation(activation);
+
+        for (int age = 0; age < history.getWindow(); age++) {
+            Matrix outputGradient = age < history.size() ? gradientAt(outputGradients, age, batch, outputSize) : null;
+            if (outputGradient == null) {
+                state.stepGradients[age] = null;
+                continue;
+            }
+
+            // Gradient with respect to the pre-activations
+            Matrix output = history.get(age, 1);
+            for (int r = 0; r < batch; r++) {
+                for (int j = 0; j < outputSize; j++) {
+                    state.delta.set(r, j, outputGradient.get(r, j) * Activations.derivative(output.get(r, j), act));
+                }
+            }
+
+            state.stepGradients[age] = DenseKernel.backward(history.get(age, 0), weights, state.delta,
+                    gradients, index, state.inputGradients[age]);
+        }
+        return state.stepGradients;
+    }
+
+    @Override
+    public LayerState newState() {
+        return new State();
+    }
+
+    // Runs the packed or sparse kernel, whichever the weights were last packed for
+    private Matrix multiply(Matrix input, int activation, Matrix out) {
+        if ((packed == null && sparse == null) || packedStale) {
+            pack();
+        }
+
+        SparseWeights s = sparse;
+        if (s != null) {
+            return DenseKernel.feedForward(input, s, activation, out);
+        }
+        return DenseKernel.feedForward(input, packed, activation, out);
+    }
+
+    // Locked so threads sharing this layer pack it once
+    private synchronized void pack() {
+        if ((packed != null || sparse != null) && !packedStale) {
+            return;
+        }
+
+        if (SparseWeights.useSparse(weights)) {
+            sparse = new SparseWeights(weights, biases);
+        } else {
+            if (packed == null) {
+                packed = new PackedWeights(weights, biases);
+            } else {
+                packed.repack(weights, biases);
+            }
+            sparse = null;
+        }
+        packedStale = false;
+    }
+
+    /**
+     * @return Whether feedForward runs on the sparse kernel, which happens once the weights are pruned
+     * below SparseWeights.DENSITY_CUTOFF
+     */
+    public boolean isSparse() {
+        if ((packed == null && sparse == null) || packedStale) {
+            pack();
+        }
+        return sparse != null;
+    }
+
+    @Override
+    public void parametersChanged() {
+        super.parametersChanged();
+        packedStale = true;
     }
 
     @Override
@@ -72,13 +222,23 @@ public class DenseLayer extends Layer {
     }
 
     @Override
-    public DenseLayer fromLargerArray(float[] arr, int index) {
-        Matrix newWeights = new Matrix(weights.getRows(), weights.getCols());
-        Matrix newBiases  = new Matrix(biases.getRows(), biases.getCols());
+    public void moveInto(float[] arr, int index) {
+        Matrix.insertWeightsBiasesIntoArray(arr, index, weights, biases);
+        weights = Matrix.weightsView(arr, index, weights.getRows(), weights.getCols());
+        biases = Matrix.biasesView(arr, index, weights.getRows(), weights.getCols());
+        bindParameters(arr, index);
+        parametersChanged();
+    }
 
-        Matrix.loadWeightsBiasesFromArray(arr, index, newWeights, newBiases);
+    @Override
+    public DenseLayer fromLargerArray(float[] arr, int index) {
+        // Views straight into the chromosome, nothing is copied
+        Matrix newWeights = Matrix.weightsView(arr, index, weights.getRows(), weights.getCols());
+        Matrix newBiases  = Matrix.biasesView(arr, index, weights.getRows(), weights.getCols());
 
-        return new DenseLayer(newWeights, newBiases, activation);
+        DenseLayer layer = new DenseLayer(newWeights, newBiases, activation);
+        layer.bindParameters(arr, index);
+        return layer;
     }
 
     public DenseLayer clone()
@@ -94,6 +254,11 @@ public class DenseLayer extends Layer {
         return biases;
     }
 
+    @Override
+    public Matrix[] getParameters() {
+        return new Matrix[] {weights, biases};
+    }
+
     @Override
     public int numParams() {
         return weights.numParams() + biases.numParams();
@@ -1,27 +1,130 @@
 package network.layers;
 
 import network.math.Activations;
+import network.math.DenseKernel;
 import network.math.Matrix;
-
+import network.math.PackedWeights;
+
+/**
+ * A long short-term memory layer.
+ * The four gates (forget, update, candidate, output) are stored side by side in one
+ * [out + in] x [4 * out] weights matrix and one 1 x [4 * out] biases matrix, so all of them
+ * come out of a single multiply. Column block g holds gate g, in that order.
+ * The chromosome is the same as four separate dense layers one after the other
+ */
 public class LSTMLayer extends Layer {
-    private int inputSize;
-    private int outputSize;
-
-    private Matrix cellState;
-    private Matrix output;
-
-    private Matrix forgetWeights;
-    private Matrix forgetBiases;
-
-    private Matrix updateWeights;
-    private Matrix updateBiases;
-
-    private Matrix candidateWeights;
-    private Matrix candidateBiases;
-
-    private Matrix outputWeights;
-    private Matrix outputBiases;
-
+    // Gate order inside the packed matrices
+    public static final int FORGET = 0;
+    public static final int UPDATE = 1;
+    public static final int CANDIDATE = 2;
+    public static final int OUTPUT = 3;
+
+    private Matrix weights;
+    private Matrix biases;
+
+    // Inference copy of the weights, repacked on the next feedForward after they change
+    private transient volatile PackedWeights packed;
+    private transient volatile boolean packedStale;
+
+    /**
+     * Cell state and last output of one or more sequences, one row each
+     */
+    private static class State extends LayerState {
+        private final int inputSize;
+        private final int outputSize;
+
+        // Two [last output | input] buffers. Each step reads one and writes its output
+        // straight into the other, so the output is never copied next to the input.
+        // output is a view into the current one
+        private Matrix[] combinedInOut;
+        private int current;
+        private Matrix output;
+
+        // Views of the output and input parts of each buffer, made once so a step only flips current
+        private Matrix[] outputViews;
+        private Matrix[] inputViews;
+
+        private Matrix cellState;
+
+        // Pre-activations of all four gates
+        private Matrix gates;
+
+        // Last steps for backward: the combined input, the gate pre-activations and the cell state before the step
+        private StepHistory history;
+
+        // Used by backward. inputGradients holds one matrix per step, and stepGradients is what backward returns
+        private Matrix hiddenGradient;
+        private Matrix cellGradient;
+        private Matrix delta;
+        private Matrix combinedGradient;
+        private Matrix combinedHiddenGradient;
+        private Matrix combinedInputGradient;
+        private Matrix[] inputGradients;
+        private Matrix[] stepGradients;
+
+        private State(int inputSize, int outputSize) {
+            this.inputSize = inputSize;
+            this.outputSize = outputSize;
+
+            //Initialize to all 0s
+            allocate(1, null, null);
+        }
+
+        // Carries over the rows of the old state that exist in both batch sizes
+        private void allocate(int batch, Matrix oldOutput, Matrix oldCellState) {
+            combinedInOut = new Matrix[] {new Matrix(batch, outputSize + inputSize), new Matrix(batch, outputSize + inputSize)};
+            outputViews = new Matrix[2];
+            inputViews = new Matrix[2];
+            for (int b = 0; b < 2; b++) {
+                outputViews[b] = combinedInOut[b].subMatrix(0, 0, batch, outputSize);
+                inputViews[b] = combinedInOut[b].subMatrix(0, outputSize, batch, inputSize);
+            }
+            current = 0;
+            output = outputViews[current];
+            cellState = new Matrix(batch, outputSize);
+            gates = new Matrix(batch, 4 * outputSize);
+            history = null;
+
+            if (oldOutput != null) {
+                copyStateRows(oldOutput, output);
+                copyStateRows(oldCellState, cellState);
+            }
+        }
+
+        // Made on the first backward, and again if the window or batch size changes
+        private void allocateBackward(int window, int batch) {
+            if (hiddenGradient != null && hiddenGradient.getRows() == batch && inputGradients.length == window) {
+                return;
+            }
+            hiddenGradient = new Matrix(batch, outputSize);
+            cellGradient = new Matrix(batch, outputSize);
+            delta = new Matrix(batch, 4 * outputSize);
+            combinedGradient = new Matrix(batch, outputSize + inputSize);
+            combinedHiddenGradient = combinedGradient.subMatrix(0, 0, batch, outputSize);
+            combinedInputGradient = combinedGradient.subMatrix(0, outputSize, batch, inputSize);
+            inputGradients = new Matrix[window];
+            for (int age = 0; age < window; age++) {
+                inputGradients[age] = new Matrix(batch, inputSize);
+            }
+            stepGradients = new Matrix[window];
+        }
+
+        @Override
+        public void reset() {
+            output.clear();
+            cellState.clear();
+            if (history != null) {
+                history.clear();
+            }
+        }
+
+        @Override
+        public LayerState copy() {
+            State copy = new State(inputSize, outputSize);
+            copy.allocate(output.getRows(), output, cellState);
+            return copy;
+        }
+    }
 
     public LSTMLayer(int inputSize, int outputSize)
     {
@@ -29,151 +132,259 @@ public class LSTMLayer extends Layer {
         this.inputSize = inputSize;
         this.outputSize = outputSize;
 
+        // This range value is called the glorot_uniform initialization, per gate
         int combinedSize = inputSize + outputSize;
+        float range = (float) Math.sqrt(6.0 / (combinedSize + outputSize));
+        this.weights = Matrix.randomUniform(combinedSize, 4 * outputSize, range);
 
-        this.forgetWeights = randomWeights(combinedSize, outputSize);
-        this.updateWeights = randomWeights(combinedSize, outputSize);
-        this.candidateWeights = randomWeights(combinedSize, outputSize);
-        this.outputWeights = randomWeights(combinedSize, outputSize);
-
-        this.forgetBiases = randomBiases(outputSize);
-        this.updateBiases = randomBiases(outputSize);
-        this.candidateBiases = randomBiases(outputSize);
-        this.outputBiases = randomBiases(outputSize);
-
-        //Initialize to all 0s
-        this.cellState = new Matrix(1, this.outputSize);
-        this.output = new Matrix(1, this.outputSize);
+        // For biases let's just use a smaller value
+        this.biases = Matrix.randomUniform(1, 4 * outputSize, 0.5f);
     }
 
-    public LSTMLayer(Matrix forgetWeights, Matrix forgetBiases, Matrix updateWeights, Matrix updateBiases,
-                     Matrix candidateWeights, Matrix candidateBiases, Matrix outputWeights, Matrix outputBiases) {
-        this.forgetWeights = forgetWeights;
-        this.forgetBiases = forgetBiases;
-        this.updateWeights = updateWeights;
-        this.updateBiases = updateBiases;
-        this.candidateWeights = candidateWeights;
-        this.candidateBiases = candidateBiases;
-        this.outputWeights = outputWeights;
-        this.outputBiases = outputBiases;
-
-        this.inputSize = forgetWeights.getRows();
-        this.outputSize = forgetWeights.getCols();
+    /**
+     * @param weights [out + in] x [4 * out] weights of the four gates
+     * @param biases 1 x [4 * out] biases of the four gates
+     */
+    public LSTMLayer(Matrix weights, Matrix biases) {
+        this.weights = weights;
+        this.biases = biases;
+
+        // Weights take in both the last output and the input
+        this.outputSize = weights.getCols() / 4;
+        this.inputSize = weights.getRows() - outputSize;
+    }
 
-        //Initialize to all 0s
-        this.cellState = new Matrix(1, this.outputSize);
-        this.output = new Matrix(1, this.outputSize);
+    @Override
+    public Matrix feedForward(Matrix input, LayerState layerState) {
+        State state = (State) layerState;
+
+        // One state row per input row
+        int batch = input.getRows();
+        if (state.output.getRows() != batch) {
+            state.allocate(batch, state.output, state.cellState);
+        }
+
+        // Combine last output and input. Only the input needs copying
+        Matrix combined = state.combinedInOut[state.current];
+        input.copyInto(state.inputViews[state.current]);
+
+        // All four gates in one multiply
+        DenseKernel.feedForward(combined, packed(), Activations.NONE, state.gates);
+
+        // Recorded before step overwrites the cell state
+        if (backpropWindow > 0) {
+            if (state.history == null || !state.history.fits(backpropWindow, batch)) {
+                state.history = new StepHistory(backpropWindow, batch, outputSize + inputSize, 4 * outputSize, outputSize);
+            }
+            state.history.record();
+            combined.copyInto(state.history.newest(0));
+            state.gates.copyInto(state.history.newest(1));
+            state.cellState.copyInto(state.history.newest(2));
+        }
+
+        // The new output goes into the output half of the other buffer
+        state.current = 1 - state.current;
+        state.output = state.outputViews[state.current];
+
+        step(state.gates, state.cellState, state.output,
+                resolveActivation(Activations.SIGMOID), resolveActivation(Activations.TANH));
+        return state.output;
     }
 
-    public Matrix randomWeights(int inputSize, int outputSize)
-    {
-        // This range value is called the glorot_uniform initialization
-        float range = (float) Math.sqrt(6.0 / (inputSize + outputSize));
-        return Matrix.randomUniform(inputSize, outputSize, range);
+    /**
+     * Truncated backpropagation through time. The gradients of the outputs are carried back through
+     * the hidden and cell states over the steps kept by setBackpropWindow, adding each step's own output gradient
+     * on the way and summing the parameter gradients of every step.
+     * Gate activations are recomputed from the recorded pre-activations.
+     * Allocates nothing after the first call
+     */
+    @Override
+    public Matrix[] backward(Matrix[] outputGradients, LayerState layerState, float[] gradients, int index) {
+        State state = (State) layerState;
+        StepHistory history = state.history;
+        if (history == null || history.size() == 0) {
+            throw new IllegalStateException("No steps to backpropagate through, set a backprop window before feedForward");
+        }
+
+        int batch = history.getBatch();
+        state.allocateBackward(history.getWindow(), batch);
+
+        int sigmoid = resolveActivation(Activations.SIGMOID);
+        int tanh = resolveActivation(Activations.TANH);
+        int size = outputSize;
+
+        state.hiddenGradient.clear();
+        state.cellGradient.clear();
+
+        for (int age = 0; age < history.getWindow(); age++) {
+            if (age >= history.size()) {
+                state.stepGradients[age] = null;
+                continue;
+            }
+
+            Matrix outputGradient = gradientAt(outputGradients, age, batch, outputSize);
+            if (outputGradient != null) {
+                state.hiddenGradient.addInPlace(outputGradient);
+            }
+
+            Matrix gates = history.get(age, 1);
+            Matrix cellBefore = history.get(age, 2);
+
+            for (int r = 0; r < batch; r++) {
+                for (int j = 0; j < size; j++) {
+                    float forget = Activations.apply(gates.get(r, FORGET * size + j), sigmoid);
+                    float update = Activations.apply(gates.get(r, UPDATE * size + j), sigmoid);
+                    float candidate = Activations.apply(gates.get(r, CANDIDATE * size + j), tanh);
+                    float outFilter = Activations.apply(gates.get(r, OUTPUT * size + j), sigmoid);
+
+                    float previous = cellBefore.get(r, j);
+                    float cellTanh = Activations.apply(forget * previous + update * candidate, tanh);
+
+                    // output = outFilter * tanh(cell), cell = forget * previous + update * candidate
+                    float dOutput = state.hiddenGradient.get(r, j);
+                    float dCell = state.cellGradient.get(r, j) + dOutput * outFilter * Activations.derivative(cellTanh, tanh);
+
+                    state.delta.set(r, FORGET * size + j, dCell * previous * Activations.derivative(forget, sigmoid));
+                    state.delta.set(r, UPDATE * size + j, dCell * candidate * Activations.derivative(update, sigmoid));
+                    state.delta.set(r, CANDIDATE * size + j, dCell * update * Activations.derivative(candidate, tanh));
+                    state.delta.set(r, OUTPUT * size + j, dOutput * cellTanh * Activations.derivative(outFilter, sigmoid));
+
+                    // Gradient of the cell state of the step before
+                    state.cellGradient.set(r, j, dCell * forget);
+                }
+            }
+
+            DenseKernel.backward(history.get(age, 0), weights, state.delta, gradients, index, state.combinedGradient);
+            state.stepGradients[age] = state.combinedInputGradient.copyInto(state.inputGradients[age]);
+
+            // The last output half is the gradient of the step before
+            state.combinedHiddenGradient.copyInto(state.hiddenGradient);
+        }
+        return state.stepGradients;
     }
 
-    public Matrix randomBiases(int size)
-    {
-        // For weights let's just use a smaller value
-        float range = 0.5f;
-        return Matrix.randomUniform(1, size, range);
+    /**
+     * Activates the gates and updates the state, in one pass over each row:
+     * c = forget * c + update * candidate, output = outFilter * tanh(c)
+     * @param gates N x [4 * out] pre-activations, in gate order
+     * @param cellState N x out cell state, updated in place
+     * @param output N x out matrix for the new output
+     * @param sigmoid Sigmoid activation to use, exact or fast
+     * @param tanh Tanh activation to use, exact or fast
+     */
+    public static void step(Matrix gates, Matrix cellState, Matrix output, int sigmoid, int tanh) {
+        int size = cellState.getCols();
+        for (int r = 0; r < cellState.getRows(); r++) {
+            for (int j = 0; j < size; j++) {
+                float forget = Activations.apply(gates.get(r, FORGET * size + j), sigmoid);
+                float update = Activations.apply(gates.get(r, UPDATE * size + j), sigmoid);
+                float candidate = Activations.apply(gates.get(r, CANDIDATE * size + j), tanh);
+                float outFilter = Activations.apply(gates.get(r, OUTPUT * size + j), sigmoid);
+
+                float cell = forget * cellState.get(r, j) + update * candidate;
+                cellState.set(r, j, cell);
+                output.set(r, j, outFilter * Activations.apply(cell, tanh));
+            }
+        }
     }
 
     @Override
-    public Matrix feedForward(Matrix input) {
-        // Combine input and last output
-        Matrix combinedInOut = output.concatenateRow(input);
-
-        // Forget gate
-        Matrix forget = combinedInOut.dot(forgetWeights).add(forgetBiases);
-        Activations.sigmoid(forget);
-
-        // Input gate layer
-        Matrix update = combinedInOut.dot(updateWeights).add(updateBiases);
-        Activations.sigmoid(update);
-
-        // Candidate values layer
-        Matrix candidates = combinedInOut.dot(candidateWeights).add(candidateBiases);
-        Activations.tanh(update);
-
-        // Do the forget then update cell state calculation
-        cellState = cellState.pointwiseMultiply(forget).add(candidates.pointwiseMultiply(update));
-
-        Matrix outFilter = combinedInOut.dot(outputWeights).add(outputBiases);
-        Activations.sigmoid(outFilter);
+    public boolean isRecurrent() {
+        return true;
+    }
 
-        // Need to tanh cell state but Activations modifies in place
-        Matrix cellStateCopy = cellState.clone();
-        Activations.tanh(cellStateCopy);
+    @Override
+    public LayerState newState() {
+        return new State(inputSize, outputSize);
+    }
 
-        this.output = outFilter.pointwiseMultiply(cellStateCopy);
+    private PackedWeights packed() {
+        PackedWeights p = packed;
+        if (p == null || packedStale) {
+            p = pack();
+        }
+        return p;
+    }
 
-        return this.output;
+    // Locked so threads sharing this layer pack it once
+    private synchronized PackedWeights pack() {
+        if (packed == null) {
+            packed = new PackedWeights(weights, biases);
+        } else if (packedStale) {
+            packed.repack(weights, biases);
+        }
+        packedStale = false;
+        return packed;
     }
 
     @Override
-    public void mutate(float mutationRate, float mutationSize) {
-        forgetWeights.mutate(mutationRate, mutationSize);
-        forgetBiases.mutate(mutationRate, mutationSize);
-        updateWeights.mutate(mutationRate, mutationSize);
-        updateBiases.mutate(mutationRate, mutationSize);
-        candidateWeights.mutate(mutationRate, mutationSize);
-        candidateBiases.mutate(mutationRate, mutationSize);
-        outputWeights.mutate(mutationRate, mutationSize);
-        outputBiases.mutate(mutationRate, mutationSize);
+    public void parametersChanged() {
+        super.parametersChanged();
+        packedStale = true;
     }
 
     @Override
     public void insertIntoArray(float[] arr, int index) {
-        Matrix.insertWeightsBiasesIntoArray(arr, index, forgetWeights, forgetBiases);
-        index += forgetWeights.numParams() + forgetBiases.numParams();
-        Matrix.insertWeightsBiasesIntoArray(arr, index, updateWeights, updateBiases);
-        index += updateWeights.numParams() + updateBiases.numParams();
-        Matrix.insertWeightsBiasesIntoArray(arr, index, candidateWeights, candidateBiases);
-        index += candidateWeights.numParams() + candidateBiases.numParams();
-        Matrix.insertWeightsBiasesIntoArray(arr, index, outputWeights, outputBiases);
+        Matrix.insertWeightsBiasesIntoArray(arr, index, weights, biases);
     }
 
     @Override
-    public Layer fromLargerArray(float[] arr, int index) {
-        Matrix forgetWeights = new Matrix(this.forgetWeights.getRows(), this.forgetWeights.getCols());
-        Matrix forgetBiases = new Matrix(this.forgetBiases.getRows(), this.forgetBiases.getCols());
-        Matrix updateWeights = new Matrix(this.updateWeights.getRows(), this.updateWeights.getCols());
-        Matrix updateBiases = new Matrix(this.updateBiases.getRows(), this.updateBiases.getCols());
-        Matrix candidateWeights = new Matrix(this.candidateWeights.getRows(), this.candidateWeights.getCols());
-        Matrix candidateBiases = new Matrix(this.candidateBiases.getRows(), this.candidateBiases.getCols());
-        Matrix outputWeights = new Matrix(this.outputWeights.getRows(), this.outputWeights.getCols());
-        Matrix outputBiases = new Matrix(this.outputBiases.getRows(), this.outputBiases.getCols());
-
-        Matrix.loadWeightsBiasesFromArray(arr, index, forgetWeights, forgetBiases);
-        Matrix.loadWeightsBiasesFromArray(arr, index, updateWeights, updateBiases);
-        Matrix.loadWeightsBiasesFromArray(arr, index, candidateWeights, candidateBiases);
-        Matrix.loadWeightsBiasesFromArray(arr, index, outputWeights, outputBiases);
-
+    public void moveInto(float[] arr, int index) {
+        Matrix.insertWeightsBiasesIntoArray(arr, index, weights, biases);
+        weights = Matrix.weightsView(arr, index, weights.getRows(), weights.getCols());
+        biases = Matrix.biasesView(arr, index, weights.getRows(), weights.getCols());
+        bindParameters(arr, index);
+        parametersChanged();
+    }
 
-        return new LSTMLayer(forgetWeights, forgetBiases, updateWeights, updateBiases,
-                            candidateWeights, candidateBiases, outputWeights, outputBiases);
+    @Override
+    public Layer fromLargerArray(float[] arr, int index) {
+        // Views straight into the chromosome, nothing is copied.
+        // Each gate's columns follow the one before, so the index moves through all four
+        Matrix newWeights = Matrix.weightsView(arr, index, weights.getRows(), weights.getCols());
+        Matrix newBiases = Matrix.biasesView(arr, index, weights.getRows(), weights.getCols());
+
+        LSTMLayer layer = new LSTMLayer(newWeights, newBiases);
+        layer.bindParameters(arr, index);
+        return layer;
     }
 
     @Override
     public Layer clone() {
-        return new LSTMLayer(forgetWeights.clone(), forgetBiases.clone(), updateWeights.clone(), updateBiases.clone(),
-                             candidateWeights.clone(), candidateBiases.clone(), outputWeights.clone(), outputBiases.clone());
+        return new LSTMLayer(weights.clone(), biases.clone());
     }
 
     @Override
     public Matrix getWeights() {
-        return outputWeights;
+        return weights;
     }
 
     @Override
     public Matrix getBiases() {
-        return outputBiases;
+        return biases;
+    }
+
+    /**
+     * @return The weights of one gate, as a view
+     */
+    public Matrix getGateWeights(int gate) {
+        return weights.subMatrix(0, gate * outputSize, weights.getRows(), outputSize);
+    }
+
+    /**
+     * @return The biases of one gate, as a view
+     */
+    public Matrix getGateBiases(int gate) {
+        return biases.subMatrix(0, gate * outputSize, 1, outputSize);
+    }
+
+    @Override
+    public Matrix[] getParameters() {
+        return new Matrix[] {weights, biases};
     }
 
     @Override
     public int numParams() {
-        return forgetWeights.numParams() + forgetBiases.numParams() + updateWeights.numParams() + updateBiases.numParams() +
-                candidateWeights.numParams() + candidateBiases.numParams() + outputWeights.numParams() + outputBiases.numParams();
+        return weights.numParams() + biases.numParams();
     }
 }
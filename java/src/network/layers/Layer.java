@@ -1,20 +1,162 @@
 package network.layers;
 
+import network.math.Activations;
 import network.math.Matrix;
+import network.math.Mutation;
+import network.math.RandomStreams;
+import network.math.SparseWeights;
 
 import java.io.Serializable;
+import java.util.SplittableRandom;
 
 public abstract class Layer implements Serializable {
     // Input and output size of network
     protected int inputSize;
     protected int outputSize;
 
+    // Use the approximate sigmoid and tanh, see Activations.fastTanh
+    protected boolean fastMath;
+
+    // State used by feedForward(input), for callers that run one sequence at a time
+    private transient LayerState defaultState;
+
+    // Counts calls to parametersChanged, so caches of the layer's outputs can tell they are out of date
+    private transient int version;
+
+    // Steps layers keep for backward, see setBackpropWindow
+    protected int backpropWindow;
+
+    // Leave pruned (zero) parameters out of mutation, see setKeepPruned
+    private boolean keepPruned;
+
+    // Array the parameters live in, in insertIntoArray order, see bindParameters
+    private float[] parameterBuffer;
+    private int parameterOffset;
+
+    /**
+     * Feed data through this layer to get an output, using the layer's own state
+     * @param input The input data to this layer, one sample per row.
+     * Layers with state keep a separate state for each row
+     * @return The output of this layer. This matrix belongs to the layer
+     * and is overwritten by the next call to feedForward
+     */
+    public Matrix feedForward(Matrix input) {
+        if (defaultState == null) {
+            defaultState = newState();
+        }
+        return feedForward(input, defaultState);
+    }
+
+    /**
+     * Feed data through this layer, reading and writing the given state.
+     * The layer itself is only read, so threads can share it as long as each has its own state
+     * and nothing changes the weights meanwhile
+     * @param input The input data to this layer, one sample per row
+     * @param state State from newState of this layer
+     * @return The output of this layer. This matrix belongs to the state
+     * and is overwritten by the next call to feedForward with it
+     */
+    public abstract Matrix feedForward(Matrix input, LayerState state);
+
     /**
-     * Feed data through this layer to get an output
-     * @param input The input data to this layer
-     * @return The output of this layer
+     * Backpropagates through the last feedForward(input), using the layer's own state
+     * @see #backward(Matrix, LayerState, float[], int)
      */
-    public abstract Matrix feedForward(Matrix input);
+    public Matrix backward(Matrix outputGradient, float[] gradients, int index) {
+        return backward(outputGradient, defaultStateForBackward(), gradients, index);
+    }
+
+    /**
+     * Backpropagates through the steps kept in the layer's own state
+     * @see #backward(Matrix[], LayerState, float[], int)
+     */
+    public Matrix[] backward(Matrix[] outputGradients, float[] gradients, int index) {
+        return backward(outputGradients, defaultStateForBackward(), gradients, index);
+    }
+
+    private LayerState defaultStateForBackward() {
+        if (defaultState == null) {
+            throw new IllegalStateException("feedForward must run before backward");
+        }
+        return defaultState;
+    }
+
+    /**
+     * Backpropagates a gradient of the newest output only, through every step kept in the state
+     * @param outputGradient Gradient of the loss with respect to the newest output, same size as the output
+     * @return Gradient of the loss with respect to the newest input. This matrix belongs to the state
+     * @see #backward(Matrix[], LayerState, float[], int)
+     */
+    public Matrix backward(Matrix outputGradient, LayerState state, float[] gradients, int index) {
+        state.newestGradient[0] = outputGradient;
+        return backward(state.newestGradient, state, gradients, index)[0];
+    }
+
+    /**
+     * Backpropagates through the steps kept by setBackpropWindow, newest first.
+     * Gradients are added to what is already in gradients, so several passes can be summed.
+     * Stacked layers pass the whole returned array to the layer below,
+     * so its gradients include what every step of the layer above sent back through its inputs
+     * @param outputGradients Gradient of the loss with respect to the output of each kept step, by age (0 is the newest).
+     * Entries that are null or past the end of the array count as 0
+     * @param state The state that feedForward used
+     * @param gradients Array to add the parameter gradients into, in the same order as insertIntoArray
+     * @param index Where this layer's parameters start in gradients
+     * @return Gradient of the loss with respect to the input of each kept step, by age, getBackpropWindow() long.
+     * Entries past the steps kept, or for steps nothing was sent back to, are null.
+     * The array and its matrices belong to the state
+     */
+    public abstract Matrix[] backward(Matrix[] outputGradients, LayerState state, float[] gradients, int index);
+
+    /**
+     * @return The gradient for the step of the given age, or null if there is none. Checks its size
+     */
+    protected static Matrix gradientAt(Matrix[] outputGradients, int age, int batch, int cols) {
+        Matrix gradient = age < outputGradients.length ? outputGradients[age] : null;
+        if (gradient != null && (gradient.getRows() != batch || gradient.getCols() != cols)) {
+            throw new IndexOutOfBoundsException(String.format("Output gradient of step %d is %dx%d, output is %dx%d",
+                    age, gradient.getRows(), gradient.getCols(), batch, cols));
+        }
+        return gradient;
+    }
+
+    /**
+     * @return A new, zeroed state for this layer
+     */
+    public abstract LayerState newState();
+
+    /**
+     * Sets how many past steps layers keep for backward (truncated backpropagation through time).
+     * Each feedForward then copies what backward needs into a ring buffer in the state,
+     * and backward goes back through at most this many steps.
+     * 0, the default, keeps nothing, so evolution pays nothing for it and backward can not run
+     */
+    public void setBackpropWindow(int steps) {
+        if (steps < 0) {
+            throw new IllegalArgumentException("Backprop window can not be negative, got " + steps);
+        }
+        this.backpropWindow = steps;
+    }
+
+    public int getBackpropWindow() {
+        return backpropWindow;
+    }
+
+    /**
+     * @return Whether the output depends on earlier inputs, not only the current one
+     */
+    public boolean isRecurrent() {
+        return false;
+    }
+
+    /**
+     * Zeroes the layer's own state, for the start of an episode
+     */
+    public void resetState() {
+        if (defaultState != null) {
+            defaultState.reset();
+        }
+    }
 
 //    public abstract void mutate(float rate);
 //
@@ -28,7 +170,95 @@ public abstract class Layer implements Serializable {
         return outputSize;
     }
 
-    public abstract void mutate(float mutationRate, float mutationSize);
+    public boolean isFastMath() {
+        return fastMath;
+    }
+
+    public void setFastMath(boolean fastMath) {
+        // Outputs change with it, so caches of them are out of date (see getVersion)
+        if (this.fastMath != fastMath) {
+            version++;
+        }
+        this.fastMath = fastMath;
+    }
+
+    /**
+     * @return The activation type to run, swapped for its approximate version in fast math mode
+     */
+    protected int resolveActivation(int activation) {
+        return fastMath ? Activations.toFast(activation) : activation;
+    }
+
+    public void mutate(float mutationRate, float mutationSize) {
+        mutate(mutationRate, mutationSize, RandomStreams.current());
+    }
+
+    /**
+     * Mutates the layer's parameters as one range of its buffer, the same way Network.mutate does
+     */
+    public void mutate(float mutationRate, float mutationSize, SplittableRandom random) {
+        if (parameterBuffer == null) {
+            // Layers made on their own get a buffer of their own
+            moveInto(new float[numParams()], 0);
+        }
+        Mutation.mutate(parameterBuffer, parameterOffset, numParams(), mutationRate, mutationSize, keepPruned, random);
+        parametersChanged();
+    }
+
+    /**
+     * With keepPruned set, mutate leaves parameters that are exactly 0 alone, see Network.setKeepPruned
+     */
+    public void setKeepPruned(boolean keepPruned) {
+        this.keepPruned = keepPruned;
+    }
+
+    public boolean isKeepPruned() {
+        return keepPruned;
+    }
+
+    /**
+     * Zeroes every weight smaller in magnitude than threshold. Biases are kept.
+     * Dense and recurrent layers switch to a sparse kernel once few enough weights are left, see SparseWeights
+     * @return Number of weights that were zeroed
+     */
+    public int prune(float threshold) {
+        Matrix weights = getWeights();
+        int pruned = 0;
+        for (int i = 0; i < weights.getRows(); i++) {
+            for (int j = 0; j < weights.getCols(); j++) {
+                float w = weights.get(i, j);
+                if (w != 0 && Math.abs(w) < threshold) {
+                    weights.set(i, j, 0);
+                    pruned++;
+                }
+            }
+        }
+        parametersChanged();
+        return pruned;
+    }
+
+    /**
+     * @return Fraction of the weights that are not 0
+     */
+    public float getDensity() {
+        return SparseWeights.density(getWeights());
+    }
+
+    /**
+     * Must be called after the parameters are changed from outside the layer,
+     * so copies of them kept for inference (see PackedWeights) are rebuilt.
+     * Subclasses that override this must call it too
+     */
+    public void parametersChanged() {
+        version++;
+    }
+
+    /**
+     * @return A number that changes every time parametersChanged is called, or fast math is switched
+     */
+    public int getVersion() {
+        return version;
+    }
 
 //    public abstract Layer naiveCrossover(Layer other);
 
@@ -43,20 +273,65 @@ public abstract class Layer implements Serializable {
     /**
      * Generates the parameters for this layer from a section
      * of a larger array. This is how the chromosome gets converted
-     * back into a layer
+     * back into a layer. The new layer may keep views into arr
+     * instead of copying it, so arr must not be reused afterwards
      * @param arr Array we are creating this layer from
      * @param index Index to take data from
      */
     public abstract Layer fromLargerArray(float[] arr, int index);
 
+    /**
+     * Copies this layer's parameters into arr, in the same order as insertIntoArray,
+     * and from then on keeps them there as views. Used by Network to hold every layer in one buffer
+     * @param arr Array to move into
+     * @param index Index to move to
+     */
+    public abstract void moveInto(float[] arr, int index);
+
+    /**
+     * Records that the parameters now live in arr from index, in insertIntoArray order.
+     * Subclasses call this from moveInto and on the layers made by fromLargerArray
+     */
+    protected void bindParameters(float[] arr, int index) {
+        this.parameterBuffer = arr;
+        this.parameterOffset = index;
+    }
+
     public abstract Layer clone();
 
     public abstract Matrix getWeights();
 
     public abstract Matrix getBiases();
 
+    /**
+     * @return Every matrix of parameters in this layer. Changing them changes the layer
+     */
+    public abstract Matrix[] getParameters();
+
     /**
      * @return Number of parameters in this layer
      */
     public abstract int numParams();
+
+    /**
+     * Reuses a scratch matrix if it is already the right size, otherwise makes a new one.
+     * Scratch matrices are allocated on the first feedForward and then reused
+     */
+    protected static Matrix ensureSize(Matrix scratch, int rows, int cols) {
+        if (scratch == null || scratch.getRows() != rows || scratch.getCols() != cols) {
+            return new Matrix(rows, cols);
+        }
+        return scratch;
+    }
+
+    /**
+     * Copies the rows that both sizes have from a state matrix into a new one with a different number of rows.
+     * Used when the batch size changes, so row i keeps its state. New rows start at 0
+     */
+    protected static Matrix copyStateRows(Matrix state, Matrix resized) {
+        int keep = Math.min(state.getRows(), resized.getRows());
+        resized.clear();
+        state.subMatrix(0, 0, keep, state.getCols()).copyInto(resized.subMatrix(0, 0, keep, resized.getCols()));
+        return resized;
+    }
 }
@@ -0,0 +1,23 @@
+package network.layers;
+
+import network.math.Matrix;
+
+/**
+ * Everything a layer writes while it runs: its recurrent state and its scratch buffers.
+ * Made by Layer.newState. Each sequence being evaluated (a unit, an episode, a thread)
+ * gets its own, so one layer and its weights can serve many of them at once
+ */
+public abstract class LayerState {
+    // Holds the one gradient passed to Layer.backward(Matrix, ...), so it does not allocate
+    final Matrix[] newestGradient = new Matrix[1];
+
+    /**
+     * Zeroes the recurrent state, for the start of an episode
+     */
+    public abstract void reset();
+
+    /**
+     * @return A separate state that continues from the same values
+     */
+    public abstract LayerState copy();
+}
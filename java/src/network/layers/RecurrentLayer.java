@@ -1,7 +1,10 @@
 package network.layers;
 
 import network.math.Activations;
+import network.math.DenseKernel;
 import network.math.Matrix;
+import network.math.PackedWeights;
+import network.math.SparseWeights;
 
 /**
  * A simple recurrent layer where the entire middle state is fed back into itself
@@ -11,7 +14,102 @@ public class RecurrentLayer extends Layer
     private Matrix weights;
     private Matrix biases;
 
-    private Matrix hiddenState;
+    // Inference copy of the weights, repacked on the next feedForward after they change
+    private transient volatile PackedWeights packed;
+
+    // Used instead of packed while pruning leaves the weights sparse enough, see SparseWeights
+    private transient volatile SparseWeights sparse;
+    private transient volatile boolean packedStale;
+
+    /**
+     * Hidden state of one or more sequences, one row each
+     */
+    private static class State extends LayerState {
+        private final int inputSize;
+        private final int outputSize;
+
+        // Two [input | hiddenState] buffers. Each step reads one and writes the new hidden state
+        // straight into the other, so the hidden state is never copied next to the input.
+        // hiddenState is a view into the current one
+        private Matrix[] combinedInOut;
+        private int current;
+        private Matrix hiddenState;
+
+        // Views of the input and hidden state parts of each buffer, made once so a step only flips current
+        private Matrix[] inputViews;
+        private Matrix[] hiddenViews;
+
+        // Last steps for backward: the combined input and the new hidden state
+        private StepHistory history;
+
+        // Used by backward. inputGradients holds one matrix per step, and stepGradients is what backward returns
+        private Matrix hiddenGradient;
+        private Matrix delta;
+        private Matrix combinedGradient;
+        private Matrix combinedInputGradient;
+        private Matrix combinedHiddenGradient;
+        private Matrix[] inputGradients;
+        private Matrix[] stepGradients;
+
+        private State(int inputSize, int outputSize) {
+            this.inputSize = inputSize;
+            this.outputSize = outputSize;
+
+            //Initialize to all 0s
+            allocate(1, null);
+        }
+
+        // Carries over the rows of the old state that exist in both batch sizes
+        private void allocate(int batch, Matrix old) {
+            combinedInOut = new Matrix[] {new Matrix(batch, inputSize + outputSize), new Matrix(batch, inputSize + outputSize)};
+            inputViews = new Matrix[2];
+            hiddenViews = new Matrix[2];
+            for (int b = 0; b < 2; b++) {
+                inputViews[b] = combinedInOut[b].subMatrix(0, 0, batch, inputSize);
+                hiddenViews[b] = combinedInOut[b].subMatrix(0, inputSize, batch, outputSize);
+            }
+            current = 0;
+
+            Matrix state = hiddenViews[current];
+            if (old != null) {
+                copyStateRows(old, state);
+            }
+            hiddenState = state;
+            history = null;
+        }
+
+        // Made on the first backward, and again if the window or batch size changes
+        private void allocateBackward(int window, int batch) {
+            if (hiddenGradient != null && hiddenGradient.getRows() == batch && inputGradients.length == window) {
+                return;
+            }
+            hiddenGradient = new Matrix(batch, outputSize);
+            delta = new Matrix(batch, outputSize);
+            combinedGradient = new Matrix(batch, inputSize + outputSize);
+            combinedInputGradient = combinedGradient.subMatrix(0, 0, batch, inputSize);
+            combinedHiddenGradient = combinedGradient.subMatrix(0, inputSize, batch, outputSize);
+            inputGradients = new Matrix[window];
+            for (int age = 0; age < window; age++) {
+                inputGradients[age] = new Matrix(batch, inputSize);
+            }
+            stepGradients = new Matrix[window];
+        }
+
+        @Override
+        public void reset() {
+            hiddenState.clear();
+            if (history != null) {
+                history.clear();
+            }
+        }
+
+        @Override
+        public LayerState copy() {
+            State copy = new State(inputSize, outputSize);
+            copy.allocate(hiddenState.getRows(), hiddenState);
+            return copy;
+        }
+    }
 
 
     public RecurrentLayer(int inputSize, int outputSize)
@@ -21,21 +119,16 @@ public class RecurrentLayer extends Layer
 
         this.randomizeBiases();
         this.randomizeWeights();
-
-        //Initialize to all 0s
-        this.hiddenState = new Matrix(1, outputSize);
     }
 
     public RecurrentLayer(Matrix weights, Matrix biases)
     {
-        this.inputSize = weights.getRows();
+        // Weights take in both the input and the hidden state
+        this.inputSize = weights.getRows() - weights.getCols();
         this.outputSize = weights.getCols();
 
         this.weights = weights;
         this.biases = biases;
-
-        //Initialize to all 0s
-        this.hiddenState = new Matrix(1, outputSize);
     }
 
     public void randomizeBiases() {
@@ -50,21 +143,139 @@ public class RecurrentLayer extends Layer
     }
 
     @Override
-    public Matrix feedForward(Matrix input) {
-        // Combine input and hidden state
-        Matrix combinedInOut = input.concatenateRow(hiddenState);
+    public Matrix feedForward(Matrix input, LayerState layerState) {
+        State state = (State) layerState;
+
+        // One hidden state row per input row
+        int batch = input.getRows();
+        if (state.hiddenState.getRows() != batch) {
+            state.allocate(batch, state.hiddenState);
+        }
+
+        // Combine input and hidden state. Only the input needs copying
+        Matrix combined = state.combinedInOut[state.current];
+        input.copyInto(state.inputViews[state.current]);
+
+        // Use tanh activation, written into the hidden state half of the other buffer
+        state.current = 1 - state.current;
+        state.hiddenState = state.hiddenViews[state.current];
+        multiply(combined, resolveActivation(Activations.TANH), state.hiddenState);
+
+        if (backpropWindow > 0) {
+            if (state.history == null || !state.history.fits(backpropWindow, batch)) {
+                state.history = new StepHistory(backpropWindow, batch, inputSize + outputSize, outputSize);
+            }
+            state.history.record();
+            combined.copyInto(state.history.newest(0));
+            state.hiddenState.copyInto(state.history.newest(1));
+        }
+        return state.hiddenState;
+    }
+
+    /**
+     * Truncated backpropagation through time. The gradients of the outputs are carried back through
+     * the hidden state over the steps kept by setBackpropWindow, adding each step's own output gradient
+     * on the way and summing the parameter gradients of every step.
+     * Allocates nothing after the first call
+     */
+    @Override
+    public Matrix[] backward(Matrix[] outputGradients, LayerState layerState, float[] gradients, int index) {
+        State state = (State) layerState;
+        StepHistory history = state.history;
+        if (history == null || history.size() == 0) {
+            throw new IllegalStateException("No steps to backpropagate through, set a backprop window before feedForward");
+        }
+
+        int batch = history.getBatch();
+        state.allocateBackward(history.getWindow(), batch);
+
+        int tanh = resolveActivation(Activations.TANH);
+        state.hiddenGradient.clear();
+
+        for (int age = 0; age < history.getWindow(); age++) {
+            if (age >= history.size()) {
+                state.stepGradients[age] = null;
+                continue;
+            }
+
+            Matrix outputGradient = gradientAt(outputGradients, age, batch, outputSize);
+            if (outputGradient != null) {
+                state.hiddenGradient.addInPlace(outputGradient);
+            }
+
+            Matrix output = history.get(age, 1);
+            for (int r = 0; r < batch; r++) {
+                for (int j = 0; j < outputSize; j++) {
+                    state.delta.set(r, j, state.hiddenGradient.get(r, j) * Activations.derivative(output.get(r, j), tanh));
+                }
+            }
+
+            DenseKernel.backward(history.get(age, 0), weights, state.delta, gradients, index, state.combinedGradient);
+            state.stepGradients[age] = state.combinedInputGradient.copyInto(state.inputGradients[age]);
+
+            // The hidden state half is the gradient of the step before
+            state.combinedHiddenGradient.copyInto(state.hiddenGradient);
+        }
+        return state.stepGradients;
+    }
+
+    @Override
+    public boolean isRecurrent() {
+        return true;
+    }
+
+    @Override
+    public LayerState newState() {
+        return new State(inputSize, outputSize);
+    }
 
-        hiddenState = combinedInOut.dot(weights).add(biases);
+    // Runs the packed or sparse kernel, whichever the weights were last packed for
+    private Matrix multiply(Matrix input, int activation, Matrix out) {
+        if ((packed == null && sparse == null) || packedStale) {
+            pack();
+        }
 
-        // Use tanh activation (modifies in place)
-        Activations.applyActivation(hiddenState, 3);
-        return hiddenState;
+        SparseWeights s = sparse;
+        if (s != null) {
+            return DenseKernel.feedForward(input, s, activation, out);
+        }
+        return DenseKernel.feedForward(input, packed, activation, out);
+    }
+
+    // Locked so threads sharing this layer pack it once
+    private synchronized void pack() {
+        if ((packed != null || sparse != null) && !packedStale) {
+            return;
+        }
+
+        if (SparseWeights.useSparse(weights)) {
+            sparse = new SparseWeights(weights, biases);
+        } else {
+            if (packed == null) {
+                packed = new PackedWeights(weights, biases);
+            } else {
+                packed.repack(weights, biases);
+            }
+            sparse = null;
+        }
+        packedStale = false;
+    }
+
+    /**
+     * @return Whether feedForward runs on the sparse kernel, which happens once the weights are pruned
+     * below SparseWeights.DENSITY_CUTOFF
+     */
+    public boolean isSparse() {
+        if ((packed == null && sparse == null) || packedStale) {
+            pack();
+        }
+        return sparse != null;
     }
 
     @Override
-    public void mutate(float mutationRate, float mutationSize) {
-        weights.mutate(mutationRate, mutationSize);
-        biases.mutate(mutationRate, mutationSize);
+    public void parametersChanged() {
+        super.parametersChanged();
+        packedStale = true;
     }
 
     @Override
@@ -73,13 +284,23 @@ public class RecurrentLayer extends Layer
     }
 
     @Override
-    public RecurrentLayer fromLargerArray(float[] arr, int index) {
-        Matrix newWeights = new Matrix(weights.getRows(), weights.getCols());
-        Matrix newBiases  = new Matrix(biases.getRows(), biases.getCols());
+    public void moveInto(float[] arr, int index) {
+        Matrix.insertWeightsBiasesIntoArray(arr, index, weights, biases);
+        weights = Matrix.weightsView(arr, index, weights.getRows(), weights.getCols());
+        biases = Matrix.biasesView(arr, index, weights.getRows(), weights.getCols());
+        bindParameters(arr, index);
+        parametersChanged();
+    }
 
-        Matrix.loadWeightsBiasesFromArray(arr, index, newWeights, newBiases);
+    @Override
+    public RecurrentLayer fromLargerArray(float[] arr, int index) {
+        // Views straight into the chromosome, nothing is copied
+        Matrix newWeights = Matrix.weightsView(arr, index, weights.getRows(), weights.getCols());
+        Matrix newBiases  = Matrix.biasesView(arr, index, weights.getRows(), weights.getCols());
 
-        return new RecurrentLayer(newWeights, newBiases);
+        RecurrentLayer layer = new RecurrentLayer(newWeights, newBiases);
+        layer.bindParameters(arr, index);
+        return layer;
     }
 
     @Override
@@ -97,6 +318,11 @@ public class RecurrentLayer extends Layer
         return biases;
     }
 
+    @Override
+    public Matrix[] getParameters() {
+        return new Matrix[] {weights, biases};
+    }
+
     @Override
     public int numParams() {
         return weights.numParams() + biases.numParams();
@@ -0,0 +1,85 @@
+package network.layers;
+
+import network.math.Matrix;
+
+/**
+ * Ring buffer of the last few steps of a recurrent layer, for truncated backpropagation through time.
+ * Each step keeps one matrix per field (for example the combined input and the output),
+ * all allocated up front, so recording a step only copies into the oldest slot
+ */
+class StepHistory {
+    private final int window;
+    private final int batch;
+
+    // [slot][field]
+    private final Matrix[][] steps;
+
+    private int newest;
+    private int size;
+
+    /**
+     * @param window Number of steps to keep
+     * @param batch Rows of every matrix, one per sequence
+     * @param widths Columns of each field
+     */
+    StepHistory(int window, int batch, int... widths) {
+        this.window = window;
+        this.batch = batch;
+        this.steps = new Matrix[window][widths.length];
+        for (int slot = 0; slot < window; slot++) {
+            for (int field = 0; field < widths.length; field++) {
+                steps[slot][field] = new Matrix(batch, widths[field]);
+            }
+        }
+        this.newest = window - 1;
+    }
+
+    /**
+     * @return Whether this history has the given window and batch size
+     */
+    boolean fits(int window, int batch) {
+        return this.window == window && this.batch == batch;
+    }
+
+    /**
+     * Starts a new step, overwriting the oldest one once the window is full.
+     * Its matrices are then filled through newest
+     */
+    void record() {
+        newest = (newest + 1) % window;
+        size = Math.min(size + 1, window);
+    }
+
+    Matrix newest(int field) {
+        return steps[newest][field];
+    }
+
+    /**
+     * @param age 0 for the newest step, up to size() - 1 for the oldest kept
+     */
+    Matrix get(int age, int field) {
+        if (age < 0 || age >= size) {
+            throw new IndexOutOfBoundsException("Step " + age + " of a history with " + size + " steps");
+        }
+        return steps[(newest - age + window) % window][field];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getWindow() {
+        return window;
+    }
+
+    int getBatch() {
+        return batch;
+    }
+
+    /**
+     * Forgets every step, for the start of a new sequence
+     */
+    void clear() {
+        size = 0;
+    }
+}
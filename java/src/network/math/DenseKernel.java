@@ -0,0 +1,268 @@
+package network.math;
+
+import java.util.Arrays;
+
+/**
+ * Fully connected kernels: out = act(input * weights + biases)
+ * Each kernel reads the weights in its own layout, PackedWeights, SparseWeights or QuantizedWeights,
+ * and activates each output row while it is still in cache
+ */
+public class DenseKernel {
+    private static final VectorOps OPS = VectorOps.INSTANCE;
+
+    /**
+     * Reads the weights from their packed layout.
+     * Each output is a contiguous dot product, written and then activated while the row is still in cache
+     * @param input N x in matrix, one sample per row
+     * @param packed Weights and biases of the layer
+     * @param activation One of the Activations constants
+     * @param out N x out matrix to write into. Can not overlap input
+     * @return out
+     */
+    public static Matrix feedForward(Matrix input, PackedWeights packed, int activation, Matrix out) {
+        if (input.getCols() != packed.getInputs() || out.getCols() != packed.getOutputs() || out.getRows() != input.getRows()) {
+            throw new IndexOutOfBoundsException(String.format("Matrix sizes do not match for dense kernel: %dx%d, %dx%d, %dx%d",
+                    input.getRows(), input.getCols(), packed.getInputs(), packed.getOutputs(), out.getRows(), out.getCols()));
+        }
+        if (out.overlaps(input)) {
+            throw new IllegalArgumentException("Output matrix of dense kernel can not overlap its inputs");
+        }
+
+        packedRows(input, packed.getData(), 0, packed.getInputs(), packed.getOutputs(), activation, out);
+        return out;
+    }
+
+    /**
+     * Same as the packed feedForward, with only the nonzero weights of a pruned layer.
+     * Each output sums over its own list of inputs, see SparseWeights
+     * @param input N x in matrix, one sample per row
+     * @param sparse Weights and biases of the layer
+     * @param activation One of the Activations constants
+     * @param out N x out matrix to write into. Can not overlap input
+     * @return out
+     */
+    public static Matrix feedForward(Matrix input, SparseWeights sparse, int activation, Matrix out) {
+        int outputs = sparse.getOutputs();
+        if (input.getCols() != sparse.getInputs() || out.getCols() != outputs || out.getRows() != input.getRows()) {
+            throw new IndexOutOfBoundsException(String.format("Matrix sizes do not match for sparse dense kernel: %dx%d, %dx%d, %dx%d",
+                    input.getRows(), input.getCols(), sparse.getInputs(), outputs, out.getRows(), out.getCols()));
+        }
+        if (out.overlaps(input)) {
+            throw new IllegalArgumentException("Output matrix of dense kernel can not overlap its inputs");
+        }
+
+        int[] starts = sparse.getStarts();
+        int[] indices = sparse.getIndices();
+        float[] values = sparse.getValues();
+        float[] biases = sparse.getBiases();
+        float[] x = input.getBuffer();
+        float[] o = out.getBuffer();
+        int xStride = input.getColStride();
+
+        for (int i = 0; i < out.getRows(); i++) {
+            int xIdx = input.getOffset() + i * input.getRowStride();
+            int outIdx = out.getOffset() + i * out.getRowStride();
+
+            for (int j = 0; j < outputs; j++) {
+                float sum = biases[j];
+                for (int n = starts[j]; n < starts[j + 1]; n++) {
+                    sum += x[xIdx + indices[n] * xStride] * values[n];
+                }
+                o[outIdx + j * out.getColStride()] = sum;
+            }
+
+            if (out.getColStride() == 1) {
+                OPS.activate(o, outIdx, outputs, activation);
+            } else {
+                for (int j = 0; j < outputs; j++) {
+                    o[outIdx + j * out.getColStride()] = Activations.apply(o[outIdx + j * out.getColStride()], activation);
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Same as the packed feedForward, with int8 weights. Each input row is rounded to int8 with its own scale,
+     * and the multiply sums the bytes in ints, scaling back to float once per output
+     * @param input N x in matrix, one sample per row
+     * @param quantized Weights and biases of the layer
+     * @param activation One of the Activations constants
+     * @param scratch At least in bytes, for the rounded input row
+     * @param out N x out matrix to write into. Can not overlap input
+     * @return out
+     */
+    public static Matrix feedForward(Matrix input, QuantizedWeights quantized, int activation, byte[] scratch, Matrix out) {
+        int inputs = quantized.getInputs();
+        int outputs = quantized.getOutputs();
+        if (input.getCols() != inputs || out.getCols() != outputs || out.getRows() != input.getRows() || scratch.length < inputs) {
+            throw new IndexOutOfBoundsException(String.format("Matrix sizes do not match for quantized dense kernel: %dx%d, %dx%d, %dx%d, %d",
+                    input.getRows(), input.getCols(), inputs, outputs, out.getRows(), out.getCols(), scratch.length));
+        }
+        if (out.overlaps(input)) {
+            throw new IllegalArgumentException("Output matrix of dense kernel can not overlap its inputs");
+        }
+
+        byte[] w = quantized.getData();
+        float[] scales = quantized.getScales();
+        float[] biases = quantized.getBiases();
+        float[] o = out.getBuffer();
+
+        for (int i = 0; i < out.getRows(); i++) {
+            float inputScale = quantizeRow(input, i, scratch);
+
+            int outIdx = out.getOffset() + i * out.getRowStride();
+            for (int j = 0; j < outputs; j++) {
+                int wIdx = j * inputs;
+                int sum = 0;
+                for (int k = 0; k < inputs; k++) {
+                    sum += scratch[k] * w[wIdx + k];
+                }
+                o[outIdx + j * out.getColStride()] = sum * inputScale * scales[j] + biases[j];
+            }
+
+            if (out.getColStride() == 1) {
+                OPS.activate(o, outIdx, outputs, activation);
+            } else {
+                for (int j = 0; j < outputs; j++) {
+                    o[outIdx + j * out.getColStride()] = Activations.apply(o[outIdx + j * out.getColStride()], activation);
+                }
+            }
+        }
+        return out;
+    }
+
+    // Rounds row i of input to int8 in q, scaled by its largest absolute value. Returns the scale
+    private static float quantizeRow(Matrix input, int row, byte[] q) {
+        float[] x = input.getBuffer();
+        int xIdx = input.getOffset() + row * input.getRowStride();
+        int stride = input.getColStride();
+        int n = input.getCols();
+
+        float max = 0;
+        for (int k = 0; k < n; k++) {
+            max = Math.max(max, Math.abs(x[xIdx + k * stride]));
+        }
+        if (max == 0) {
+            Arrays.fill(q, 0, n, (byte) 0);
+            return 0;
+        }
+
+        float scale = max / QuantizedWeights.LEVELS;
+        float inverse = QuantizedWeights.LEVELS / max;
+        for (int k = 0; k < n; k++) {
+            q[k] = (byte) Math.round(x[xIdx + k * stride] * inverse);
+        }
+        return scale;
+    }
+
+    /**
+     * Backward pass of feedForward. Adds the weight and bias gradients into gradients,
+     * in the chromosome layout (see Matrix.insertWeightsBiasesIntoArray), summed over the rows
+     * @param input N x in matrix that was fed forward
+     * @param weights in x out matrix that was used
+     * @param delta N x out gradient of the loss with respect to the pre-activations
+     * @param gradients Array to add the gradients into
+     * @param index Where the layer's parameters start in gradients
+     * @param inputGradient N x in matrix for the gradient with respect to input, or null if not needed
+     * @return inputGradient
+     */
+    public static Matrix backward(Matrix input, Matrix weights, Matrix delta, float[] gradients, int index, Matrix inputGradient) {
+        int inputs = weights.getRows();
+        int outputs = weights.getCols();
+        if (input.getCols() != inputs || delta.getCols() != outputs || delta.getRows() != input.getRows()
+                || index + outputs * (inputs + 1) > gradients.length) {
+            throw new IndexOutOfBoundsException(String.format("Matrix sizes do not match for dense backward: %dx%d, %dx%d, %dx%d, %d at %d",
+                    input.getRows(), input.getCols(), inputs, outputs, delta.getRows(), delta.getCols(), gradients.length, index));
+        }
+
+        for (int j = 0; j < outputs; j++) {
+            int g = index + j * (inputs + 1);
+            for (int r = 0; r < input.getRows(); r++) {
+                float d = delta.get(r, j);
+                if (d == 0) {
+                    continue;
+                }
+                for (int k = 0; k < inputs; k++) {
+                    gradients[g + k] += input.get(r, k) * d;
+                }
+                gradients[g + inputs] += d;
+            }
+        }
+
+        if (inputGradient == null) {
+            return null;
+        }
+        if (inputGradient.getRows() != input.getRows() || inputGradient.getCols() != inputs) {
+            throw new IndexOutOfBoundsException(String.format("Input gradient is %dx%d, input is %dx%d",
+                    inputGradient.getRows(), inputGradient.getCols(), input.getRows(), inputs));
+        }
+        for (int r = 0; r < input.getRows(); r++) {
+            for (int k = 0; k < inputs; k++) {
+                float sum = 0;
+                for (int j = 0; j < outputs; j++) {
+                    sum += delta.get(r, j) * weights.get(k, j);
+                }
+                inputGradient.set(r, k, sum);
+            }
+        }
+        return inputGradient;
+    }
+
+    /**
+     * Runs each row of input through its own set of weights, for a stack of same-shaped layers.
+     * Row i uses the packed weights at stacked[i * outputs * (inputs + 1)], in the PackedWeights layout,
+     * which is also each member's chromosome for this layer
+     * @param input N x inputs matrix, one row per member
+     * @param stacked N packed layers, one after the other
+     * @param activation One of the Activations constants
+     * @param out N x outputs matrix to write into. Can not overlap input
+     * @return out
+     */
+    public static Matrix feedForwardStacked(Matrix input, float[] stacked, int inputs, int outputs, int activation, Matrix out) {
+        if (input.getCols() != inputs || out.getCols() != outputs || out.getRows() != input.getRows()
+                || stacked.length < input.getRows() * outputs * (inputs + 1)) {
+            throw new IndexOutOfBoundsException(String.format("Matrix sizes do not match for stacked dense kernel: %dx%d, %dx%d, %dx%d, %d",
+                    input.getRows(), input.getCols(), inputs, outputs, out.getRows(), out.getCols(), stacked.length));
+        }
+        if (out.overlaps(input)) {
+            throw new IllegalArgumentException("Output matrix of dense kernel can not overlap its inputs");
+        }
+
+        packedRows(input, stacked, outputs * (inputs + 1), inputs, outputs, activation, out);
+        return out;
+    }
+
+    // Packed kernel. Row i reads its weights from p[i * rowStep], so rowStep 0 shares one set of weights
+    private static void packedRows(Matrix input, float[] p, int rowStep, int inner, int cols, int activation, Matrix out) {
+        float[] x = input.getBuffer();
+        float[] o = out.getBuffer();
+
+        for (int i = 0; i < out.getRows(); i++) {
+            int xIdx = input.getOffset() + i * input.getRowStride();
+            int outIdx = out.getOffset() + i * out.getRowStride();
+
+            for (int j = 0; j < cols; j++) {
+                int pIdx = i * rowStep + j * (inner + 1);
+                float sum;
+                if (input.getColStride() == 1) {
+                    sum = OPS.dot(x, xIdx, p, pIdx, inner);
+                } else {
+                    sum = 0;
+                    for (int k = 0; k < inner; k++) {
+                        sum += x[xIdx + k * input.getColStride()] * p[pIdx + k];
+                    }
+                }
+                o[outIdx + j * out.getColStride()] = sum + p[pIdx + inner];
+            }
+
+            if (out.getColStride() == 1) {
+                OPS.activate(o, outIdx, cols, activation);
+            } else {
+                for (int j = 0; j < cols; j++) {
+                    o[outIdx + j * out.getColStride()] = Activations.apply(o[outIdx + j * out.getColStride()], activation);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package network.math;
+
+/**
+ * Matrix multiply kernels used by Matrix.dotInto
+ * Both write a * b into out, and expect the sizes to already be checked
+ */
+public class Gemm {
+    // Tile sizes for the blocked multiply. A 32 x 64 tile of a plus a 64 x 256 tile of b
+    // is about 72KB of floats, which stays in L2 while the tile of out is built up
+    private static final int BLOCK_I = 32;
+    private static final int BLOCK_K = 64;
+    private static final int BLOCK_J = 256;
+
+    private static final VectorOps OPS = VectorOps.INSTANCE;
+
+    /**
+     * Picks the multiply for the shape of the matrices.
+     * Single row inputs (the normal network case) use the plain loop,
+     * unless a SIMD backend is loaded, since the blocked inner loop is what it speeds up.
+     * Batches of rows use the blocked loop, as long as b's rows are contiguous
+     */
+    public static void multiply(Matrix a, Matrix b, Matrix out) {
+        boolean vectorRow = OPS.isVectorized() && out.getColStride() == 1;
+        if ((a.getRows() > 1 || vectorRow) && b.getColStride() == 1) {
+            blocked(a, b, out);
+        } else {
+            naive(a, b, out);
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    // i-j-k order. Each output value is one dot product of a row of a and a column of b
+    public static void naive(Matrix a, Matrix b, Matrix out) {
+        float[] aData = a.getBuffer();
+        float[] bData = b.getBuffer();
+        float[] o = out.getBuffer();
+
+        int inner = a.getCols();
+
+        //for each spot in the new matrix
+        for (int i = 0; i < a.getRows(); i++) {
+            int aRow = a.getOffset() + i * a.getRowStride();
+            int outIdx = out.getOffset() + i * out.getRowStride();
+            for (int j = 0; j < b.getCols(); j++) {
+                int aIdx = aRow;
+                int bIdx = b.getOffset() + j * b.getColStride();
+                float sum = 0;
+                for (int k = 0; k < inner; k++) {
+                    sum += aData[aIdx] * bData[bIdx];
+                    aIdx += a.getColStride();
+                    bIdx += b.getRowStride();
+                }
+                o[outIdx] = sum;
+                outIdx += out.getColStride();
+            }
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    // Tiled i-k-j order. The inner loop runs along a row of b and a row of out,
+    // so both are read in order instead of stepping down b's columns.
+    // Each output still sums its k terms in order, so the result matches naive exactly
+    public static void blocked(Matrix a, Matrix b, Matrix out) {
+        float[] aData = a.getBuffer();
+        float[] bData = b.getBuffer();
+        float[] o = out.getBuffer();
+
+        int rows = a.getRows();
+        int inner = a.getCols();
+        int cols = b.getCols();
+
+        out.clear();
+
+        for (int i0 = 0; i0 < rows; i0 += BLOCK_I) {
+            int iEnd = Math.min(i0 + BLOCK_I, rows);
+            for (int k0 = 0; k0 < inner; k0 += BLOCK_K) {
+                int kEnd = Math.min(k0 + BLOCK_K, inner);
+                for (int j0 = 0; j0 < cols; j0 += BLOCK_J) {
+                    int jEnd = Math.min(j0 + BLOCK_J, cols);
+
+                    for (int i = i0; i < iEnd; i++) {
+                        int aRow = a.getOffset() + i * a.getRowStride();
+                        int outRow = out.getOffset() + i * out.getRowStride() + j0 * out.getColStride();
+                        for (int k = k0; k < kEnd; k++) {
+                            float aik = aData[aRow + k * a.getColStride()];
+                            int bIdx = b.getOffset() + k * b.getRowStride() + j0;
+                            if (out.getColStride() == 1) {
+                                OPS.axpy(aik, bData, bIdx, o, outRow, jEnd - j0);
+                                continue;
+                            }
+
+                            int outIdx = outRow;
+                            for (int j = j0; j < jEnd; j++) {
+                                o[outIdx] += aik * bData[bIdx];
+                                bIdx++;
+                                outIdx += out.getColStride();
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -1,28 +1,107 @@
 package network.math;
 
 import java.io.Serializable;
-
+import java.util.SplittableRandom;
+
+/**
+ * A 2D matrix of floats.
+ * Values are stored in a single flat array, addressed as
+ * data[offset + r * rowStride + c * colStride]. Matrices created
+ * by this class are row-major and contiguous (rowStride == cols, colStride == 1)
+ */
 public class Matrix implements Serializable {
+    private static final VectorOps OPS = VectorOps.INSTANCE;
 
     // local variables
     private int rows;
     private int cols;
-    private float[][] data;
+    private float[] data;
+
+    // Layout of the values inside data
+    private int offset;
+    private int rowStride;
+    private int colStride;
 
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
     //constructor
     public Matrix(int r, int c) {
-        rows = r;
-        cols = c;
-        data = new float[rows][cols];
+        this(r, c, new float[r * c], 0, c, 1);
     }
 
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
-    //constructor from 2D array
+    //constructor from 2D array. The values are copied into a flat array
     public Matrix(float[][] m) {
-        data = m;
-        rows = m.length;
-        cols = m[0].length;
+        this(m.length, m[0].length);
+        for (int i = 0; i < rows; i++) {
+            System.arraycopy(m[i], 0, data, i * cols, cols);
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    //constructor over an existing flat array with a given layout
+    Matrix(int r, int c, float[] data, int offset, int rowStride, int colStride) {
+        this.rows = r;
+        this.cols = c;
+        this.data = data;
+        this.offset = offset;
+        this.rowStride = rowStride;
+        this.colStride = colStride;
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    // Views. A view is a window over values that already exist, so making one copies nothing,
+    // and writing to a view writes to whatever it was made from
+
+    /**
+     * @return A rows x cols view of buffer, with value (r, c) at buffer[offset + r * rowStride + c * colStride]
+     */
+    public static Matrix view(float[] buffer, int offset, int rows, int cols, int rowStride, int colStride) {
+        Matrix m = new Matrix(rows, cols, buffer, offset, rowStride, colStride);
+        if (rows < 0 || cols < 0 || (m.numParams() > 0 && (m.firstIndex() < 0 || m.lastIndex() >= buffer.length))) {
+            throw new IndexOutOfBoundsException(String.format("View of %dx%d at offset %d with strides %d, %d does not fit in %d values",
+                    rows, cols, offset, rowStride, colStride, buffer.length));
+        }
+        return m;
+    }
+
+    /**
+     * @return The weights of a layer stored in the chromosome layout at arr[index]
+     * (see insertWeightsBiasesIntoArray), as a view
+     */
+    public static Matrix weightsView(float[] arr, int index, int rows, int cols) {
+        return view(arr, index, rows, cols, 1, rows + 1);
+    }
+
+    /**
+     * @return The biases that go with weightsView, as a 1 x cols view
+     */
+    public static Matrix biasesView(float[] arr, int index, int rows, int cols) {
+        return view(arr, index + rows, 1, cols, cols * (rows + 1), rows + 1);
+    }
+
+    /**
+     * @return View of the rows x cols block starting at (row, col)
+     */
+    public Matrix subMatrix(int row, int col, int rows, int cols) {
+        if (row < 0 || col < 0 || rows < 0 || cols < 0 || row + rows > this.rows || col + cols > this.cols) {
+            throw new IndexOutOfBoundsException(String.format("Sub matrix %dx%d at (%d, %d) is outside %dx%d matrix",
+                    rows, cols, row, col, this.rows, this.cols));
+        }
+        return new Matrix(rows, cols, data, offset + row * rowStride + col * colStride, rowStride, colStride);
+    }
+
+    /**
+     * @return View of row r as a 1 x cols matrix
+     */
+    public Matrix rowView(int r) {
+        return subMatrix(r, 0, 1, cols);
+    }
+
+    /**
+     * @return View of the transpose, made by swapping the strides
+     */
+    public Matrix transposeView() {
+        return new Matrix(cols, rows, data, offset, colStride, rowStride);
     }
 
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
@@ -36,7 +115,7 @@ public class Matrix implements Serializable {
         String ret = "";
         for (int r = 0; r < rows; r++) {
             for (int c = 0; c < cols; c++) {
-                ret += String.format("%.2f", data[r][c]);
+                ret += String.format("%.2f", get(r, c));
                 if (c != cols - 1) {
                     ret += " ";
                 }
@@ -47,51 +126,86 @@ public class Matrix implements Serializable {
     }
 
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    // Element access
+    public float get(int r, int c) {
+        return data[offset + r * rowStride + c * colStride];
+    }
+
+    public void set(int r, int c, float value) {
+        data[offset + r * rowStride + c * colStride] = value;
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    // Every operation comes in three forms:
+    // op(...)            returns a new matrix
+    // opInto(..., out)   writes the result into out and returns it
+    // opInPlace(...)     overwrites this matrix and returns it
+    // The Into and InPlace forms do not allocate, so they are what the layers use
 
     //multiply by scalar
     public Matrix multiply(float n) {
-        Matrix newMatrix = new Matrix(rows, cols);
+        return multiplyInto(n, new Matrix(rows, cols));
+    }
+
+    public Matrix multiplyInPlace(float n) {
+        return multiplyInto(n, this);
+    }
+
+    public Matrix multiplyInto(float n, Matrix out) {
+        checkSameShape(out, "multiply");
+
+        if (isContiguous() && out.isContiguous()) {
+            OPS.multiply(data, offset, n, out.data, out.offset, numParams());
+            return out;
+        }
 
         for (int i = 0; i < rows; i++) {
+            int idx = offset + i * rowStride;
+            int outIdx = out.offset + i * out.rowStride;
             for (int j = 0; j < cols; j++) {
-                newMatrix.data[i][j] = data[i][j] * n;
+                out.data[outIdx] = data[idx] * n;
+                idx += colStride;
+                outIdx += out.colStride;
             }
         }
-        return newMatrix;
+        return out;
     }
 
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
     //return a matrix which is this matrix dot product parameter matrix
     public Matrix dot(Matrix n) {
-        Matrix result = new Matrix(rows, n.cols);
+        return dotInto(n, new Matrix(rows, n.cols));
+    }
 
+    // Dot product written into out. out can not share values with either input
+    public Matrix dotInto(Matrix n, Matrix out) {
         if (cols != n.rows) {
             throw new IndexOutOfBoundsException(String.format("Matrix cols do not equal rows for dot: %d, %d", cols, n.rows));
         }
-
-        //for each spot in the new matrix
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < n.cols; j++) {
-                float sum = 0;
-                for (int k = 0; k < cols; k++) {
-                    sum += data[i][k] * n.data[k][j];
-                }
-                result.data[i][j] = sum;
-            }
+        if (out.rows != rows || out.cols != n.cols) {
+            throw new IndexOutOfBoundsException(String.format("Output matrix is the wrong size for dot: %d, %d, %d, %d",
+                    out.rows, rows, out.cols, n.cols));
         }
+        if (out.overlaps(this) || out.overlaps(n)) {
+            throw new IllegalArgumentException("Output matrix of dot can not overlap its inputs");
+        }
+
+        Gemm.multiply(this, n, out);
 
-        return result;
+        return out;
     }
 
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
     //set the matrix to random floats between -1 and 1
     public static Matrix randomUniform(int rows, int cols, float range) {
+        return randomUniform(rows, cols, range, RandomStreams.current());
+    }
+
+    public static Matrix randomUniform(int rows, int cols, float range, SplittableRandom random) {
         Matrix ret = new Matrix(rows, cols);
 
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < cols; j++) {
-                ret.data[i][j] = range * (2 * MyRand.randFloat() - 1);
-            }
+        for (int i = 0; i < ret.data.length; i++) {
+            ret.data[i] = range * (2 * RandomStreams.nextFloat(random) - 1);
         }
 
         return ret;
@@ -100,124 +214,275 @@ public class Matrix implements Serializable {
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
     //add a scalar to the matrix
     public Matrix add(float n) {
-        Matrix newMatrix = new Matrix(rows, cols);
+        return addInto(n, new Matrix(rows, cols));
+    }
+
+    public Matrix addInPlace(float n) {
+        return addInto(n, this);
+    }
+
+    public Matrix addInto(float n, Matrix out) {
+        checkSameShape(out, "add");
+
+        if (isContiguous() && out.isContiguous()) {
+            OPS.add(data, offset, n, out.data, out.offset, numParams());
+            return out;
+        }
 
         for (int i = 0; i < rows; i++) {
+            int idx = offset + i * rowStride;
+            int outIdx = out.offset + i * out.rowStride;
             for (int j = 0; j < cols; j++) {
-                newMatrix.data[i][j] = data[i][j] + n;
+                out.data[outIdx] = data[idx] + n;
+                idx += colStride;
+                outIdx += out.colStride;
             }
         }
 
-        return newMatrix;
+        return out;
     }
 
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
     ///return a matrix which is this matrix + parameter matrix
     public Matrix add(Matrix n) {
-        Matrix newMatrix = new Matrix(rows, cols);
+        return addInto(n, new Matrix(rows, cols));
+    }
+
+    public Matrix addInPlace(Matrix n) {
+        return addInto(n, this);
+    }
 
+    public Matrix addInto(Matrix n, Matrix out) {
         if (cols != n.cols || rows != n.rows) {
             throw new IndexOutOfBoundsException(String.format("Matrix cols do not equal rows for add: %d, %d, %d, %d",
                     rows, n.rows, cols, n.cols));
         }
+        checkSameShape(out, "add");
+
+        if (isContiguous() && n.isContiguous() && out.isContiguous()) {
+            OPS.add(data, offset, n.data, n.offset, out.data, out.offset, numParams());
+            return out;
+        }
 
         for (int i = 0; i < rows; i++) {
+            int idx = offset + i * rowStride;
+            int nIdx = n.offset + i * n.rowStride;
+            int outIdx = out.offset + i * out.rowStride;
             for (int j = 0; j < cols; j++) {
-                newMatrix.data[i][j] = data[i][j] + n.data[i][j];
+                out.data[outIdx] = data[idx] + n.data[nIdx];
+                idx += colStride;
+                nIdx += n.colStride;
+                outIdx += out.colStride;
             }
         }
 
-        return newMatrix;
+        return out;
     }
 
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
     // Subtracts this matrix from a scalar
     public Matrix subtractFrom(float n) {
-        Matrix newMatrix = new Matrix(rows, cols);
+        return subtractFromInto(n, new Matrix(rows, cols));
+    }
+
+    public Matrix subtractFromInPlace(float n) {
+        return subtractFromInto(n, this);
+    }
+
+    public Matrix subtractFromInto(float n, Matrix out) {
+        checkSameShape(out, "subtractFrom");
 
         for (int i = 0; i < rows; i++) {
+            int idx = offset + i * rowStride;
+            int outIdx = out.offset + i * out.rowStride;
             for (int j = 0; j < cols; j++) {
-                newMatrix.data[i][j] = n - data[i][j];
+                out.data[outIdx] = n - data[idx];
+                idx += colStride;
+                outIdx += out.colStride;
             }
         }
 
-        return newMatrix;
+        return out;
     }
 
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
     //return a matrix which is this matrix - parameter matrix
     public Matrix subtract(Matrix n) {
-        Matrix newMatrix = new Matrix(cols, rows);
+        Matrix newMatrix = new Matrix(rows, cols);
         if (cols == n.cols && rows == n.rows) {
-            for (int i = 0; i < rows; i++) {
-                for (int j = 0; j < cols; j++) {
-                    newMatrix.data[i][j] = data[i][j] - n.data[i][j];
-                }
-            }
+            subtractInto(n, newMatrix);
         }
         return newMatrix;
     }
 
+    public Matrix subtractInPlace(Matrix n) {
+        return subtractInto(n, this);
+    }
+
+    public Matrix subtractInto(Matrix n, Matrix out) {
+        checkSameShape(n, "subtract");
+        checkSameShape(out, "subtract");
+
+        if (isContiguous() && n.isContiguous() && out.isContiguous()) {
+            OPS.subtract(data, offset, n.data, n.offset, out.data, out.offset, numParams());
+            return out;
+        }
+
+        for (int i = 0; i < rows; i++) {
+            int idx = offset + i * rowStride;
+            int nIdx = n.offset + i * n.rowStride;
+            int outIdx = out.offset + i * out.rowStride;
+            for (int j = 0; j < cols; j++) {
+                out.data[outIdx] = data[idx] - n.data[nIdx];
+                idx += colStride;
+                nIdx += n.colStride;
+                outIdx += out.colStride;
+            }
+        }
+        return out;
+    }
+
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
     //return a matrix which is this matrix * parameter matrix (element wise multiplication)
     public Matrix pointwiseMultiply(Matrix n) {
         Matrix newMatrix = new Matrix(rows, cols);
 
         if (cols == n.cols && rows == n.rows) {
-            for (int i = 0; i < rows; i++) {
-                for (int j = 0; j < cols; j++) {
-                    newMatrix.data[i][j] = data[i][j] * n.data[i][j];
-                }
-            }
+            pointwiseMultiplyInto(n, newMatrix);
         }
 
         return newMatrix;
     }
 
+    public Matrix pointwiseMultiplyInPlace(Matrix n) {
+        return pointwiseMultiplyInto(n, this);
+    }
+
+    public Matrix pointwiseMultiplyInto(Matrix n, Matrix out) {
+        checkSameShape(n, "pointwiseMultiply");
+        checkSameShape(out, "pointwiseMultiply");
+
+        if (isContiguous() && n.isContiguous() && out.isContiguous()) {
+            OPS.multiply(data, offset, n.data, n.offset, out.data, out.offset, numParams());
+            return out;
+        }
+
+        for (int i = 0; i < rows; i++) {
+            int idx = offset + i * rowStride;
+            int nIdx = n.offset + i * n.rowStride;
+            int outIdx = out.offset + i * out.rowStride;
+            for (int j = 0; j < cols; j++) {
+                out.data[outIdx] = data[idx] * n.data[nIdx];
+                idx += colStride;
+                nIdx += n.colStride;
+                outIdx += out.colStride;
+            }
+        }
+
+        return out;
+    }
+
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
     //return a matrix which is the transpose of this matrix
     public Matrix transpose() {
-        Matrix n = new Matrix(cols, rows);
+        return transposeInto(new Matrix(cols, rows));
+    }
+
+    // Transpose written into out. out can not share values with this matrix
+    public Matrix transposeInto(Matrix out) {
+        if (out.rows != cols || out.cols != rows) {
+            throw new IndexOutOfBoundsException(String.format("Output matrix is the wrong size for transpose: %d, %d, %d, %d",
+                    out.rows, cols, out.cols, rows));
+        }
+        if (out.overlaps(this)) {
+            throw new IllegalArgumentException("Output matrix of transpose can not overlap its input");
+        }
+
         for (int i = 0; i < rows; i++) {
             for (int j = 0; j < cols; j++) {
-                n.data[j][i] = data[i][j];
+                out.set(j, i, get(i, j));
             }
         }
-        return n;
+        return out;
     }
 
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
-    // Concatenates two 1 x N row matrices together
+    // Concatenates two matrices side by side, row by row
+    // For 1 x N row matrices this is one longer row
     public Matrix concatenateRow(Matrix n) {
-        Matrix newMatrix = new Matrix(1, cols + n.cols);
+        return concatenateRowInto(n, new Matrix(rows, cols + n.cols));
+    }
 
-        for (int i = 0; i < cols; i++) {
-            newMatrix.data[0][i] = data[0][i];
+    // Concatenation written into out. out can not share values with either input
+    public Matrix concatenateRowInto(Matrix n, Matrix out) {
+        if (n.rows != rows || out.rows != rows || out.cols != cols + n.cols) {
+            throw new IndexOutOfBoundsException(String.format("Matrix sizes do not match for concatenateRow: %dx%d, %dx%d, %dx%d",
+                    rows, cols, n.rows, n.cols, out.rows, out.cols));
+        }
+        if (out.overlaps(this) || out.overlaps(n)) {
+            throw new IllegalArgumentException("Output matrix of concatenateRow can not overlap its inputs");
         }
 
-        for (int i = cols; i < cols + n.cols; i++) {
-            newMatrix.data[0][i] = n.data[0][i - cols];
+        for (int r = 0; r < rows; r++) {
+            for (int i = 0; i < cols; i++) {
+                out.set(r, i, get(r, i));
+            }
+
+            for (int i = cols; i < cols + n.cols; i++) {
+                out.set(r, i, n.get(r, i - cols));
+            }
         }
 
-        return newMatrix;
+        return out;
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    // Copies the values of this matrix into out
+    public Matrix copyInto(Matrix out) {
+        checkSameShape(out, "copy");
+
+        for (int i = 0; i < rows; i++) {
+            int idx = offset + i * rowStride;
+            int outIdx = out.offset + i * out.rowStride;
+            for (int j = 0; j < cols; j++) {
+                out.data[outIdx] = data[idx];
+                idx += colStride;
+                outIdx += out.colStride;
+            }
+        }
+        return out;
+    }
+
+    // Sets every value to 0
+    public void clear() {
+        for (int i = 0; i < rows; i++) {
+            int idx = offset + i * rowStride;
+            for (int j = 0; j < cols; j++) {
+                data[idx] = 0;
+                idx += colStride;
+            }
+        }
     }
 
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
     //Creates a single column array from the parameter array
     public static Matrix singleColumnMatrixFromArray(float[] arr) {
         Matrix n = new Matrix(arr.length, 1);
-        for (int i = 0; i < arr.length; i++) {
-            n.data[i][0] = arr[i];
-        }
+        System.arraycopy(arr, 0, n.data, 0, arr.length);
         return n;
     }
 
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
     //sets this matrix from an array
     public void fromArray(float[] arr) {
+        if (isContiguous()) {
+            System.arraycopy(arr, 0, data, offset, rows * cols);
+            return;
+        }
+
         for (int i = 0; i < rows; i++) {
             for (int j = 0; j < cols; j++) {
-                data[i][j] = arr[j + i * cols];
+                set(i, j, arr[j + i * cols]);
             }
         }
     }
@@ -227,9 +492,9 @@ public class Matrix implements Serializable {
     public Matrix addBias() {
         Matrix n = new Matrix(rows + 1, 1);
         for (int i = 0; i < rows; i++) {
-            n.data[i][0] = data[i][0];
+            n.data[i] = get(i, 0);
         }
-        n.data[rows][0] = 1;
+        n.data[rows] = 1;
         return n;
     }
 
@@ -237,9 +502,11 @@ public class Matrix implements Serializable {
     //returns the matrix that is the derived sigmoid function of the current matrix
     public Matrix sigmoidDerived() {
         Matrix n = new Matrix(rows, cols);
+        int out = 0;
         for (int i = 0; i < rows; i++) {
             for (int j = 0; j < cols; j++) {
-                n.data[i][j] = (data[i][j] * (1 - data[i][j]));
+                float value = get(i, j);
+                n.data[out++] = (value * (1 - value));
             }
         }
         return n;
@@ -247,11 +514,13 @@ public class Matrix implements Serializable {
 
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
     //returns the matrix which is this matrix with the bottom layer removed
+    //this is a copy, subMatrix(0, 0, rows - 1, cols) gives the same values as a view
     public Matrix removeBottomLayer() {
         Matrix n = new Matrix(rows - 1, cols);
+        int out = 0;
         for (int i = 0; i < n.rows; i++) {
             for (int j = 0; j < cols; j++) {
-                n.data[i][j] = data[i][j];
+                n.data[out++] = get(i, j);
             }
         }
         return n;
@@ -259,48 +528,46 @@ public class Matrix implements Serializable {
 
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
     //Mutation function for genetic algorithm
+    //Only visits the values that get mutated, see Mutation
     public void mutate(float mutationRate, float mutationSize) {
-        //for each element in the matrix
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < cols; j++) {
-                //if chosen to be mutated
-                if (MyRand.randFloat() < mutationRate) {
-                    data[i][j] += 2 * mutationSize * (MyRand.randFloat() - 0.5);
-
-                    //TODO implement bounds on mutation?
-//					//set the boundaries to 1 and -1
-//					if (matrix[i][j]>1) {
-//						matrix[i][j] = 1;
-//					}
-//					if (matrix[i][j] <-1) {
-//						matrix[i][j] = -1;
-//					}
-                }
-            }
-        }
+        mutate(mutationRate, mutationSize, RandomStreams.current());
+    }
+
+    public void mutate(float mutationRate, float mutationSize, SplittableRandom random) {
+        Mutation.mutate(this, mutationRate, mutationSize, false, random);
+
+        //TODO implement bounds on mutation?
+    }
+
+    //Same, but values that are exactly 0 stay 0 if keepZeros is set, so pruned weights stay pruned
+    public void mutate(float mutationRate, float mutationSize, boolean keepZeros, SplittableRandom random) {
+        Mutation.mutate(this, mutationRate, mutationSize, keepZeros, random);
     }
 
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
     //returns a matrix which has a random number of values from this matrix and the rest from the parameter matrix
     public Matrix crossover(Matrix partner) {
+        return crossover(partner, RandomStreams.current());
+    }
+
+    public Matrix crossover(Matrix partner, SplittableRandom random) {
         Matrix child = new Matrix(rows, cols);
 
         //pick a random point in the matrix
-        int randValue = MyRand.randInt(rows * cols);
-        int randR = randValue / cols; // Round down
-        int randC = randValue % cols; // Find column
-
-//        System.out.println(randValue + " " + randR + " " + randC);
+        int randValue = random.nextInt(rows * cols);
 
+        // Row-major index of each element decides which parent it comes from
+        int out = 0;
         for (int i = 0; i < rows; i++) {
             for (int j = 0; j < cols; j++) {
-                if ((i < randR) || (i == randR && j <= randC)) {
+                if (out <= randValue) {
                     // If before the random point then copy from this matrix
-                    child.data[i][j] = data[i][j];
+                    child.data[out] = get(i, j);
                 } else {
                     //if after the random point then copy from the parameter array
-                    child.data[i][j] = partner.data[i][j];
+                    child.data[out] = partner.get(i, j);
                 }
+                out++;
             }
         }
 
@@ -314,16 +581,21 @@ public class Matrix implements Serializable {
         int rows = weights.getRows();
         int cols = weights.getCols();
 
+        float[] w = weights.data;
+        float[] b = biases.data;
+
         // Interleaves the weights and biases
         // One row of weights, then the associated bias
         for (int c = 0; c < cols; c++)
         {
+            int wIdx = weights.offset + c * weights.colStride;
             for (int r = 0; r < rows; r++)
             {
-                arr[increment + r] = weights.data[r][c];
+                arr[increment + r] = w[wIdx];
+                wIdx += weights.rowStride;
             }
             increment += rows;
-            arr[increment] = biases.data[0][c];
+            arr[increment] = b[biases.offset + c * biases.colStride];
             increment += 1;
         }
     }
@@ -335,16 +607,21 @@ public class Matrix implements Serializable {
         int rows = weights.getRows();
         int cols = weights.getCols();
 
+        float[] w = weights.data;
+        float[] b = biases.data;
+
         // LoInterleaves the weights and biases
         // One row of weights, then the associated bias
         for (int c = 0; c < cols; c++)
         {
+            int wIdx = weights.offset + c * weights.colStride;
             for (int r = 0; r < rows; r++)
             {
-                weights.data[r][c] = arr[increment + r];
+                w[wIdx] = arr[increment + r];
+                wIdx += weights.rowStride;
             }
             increment += rows;
-            biases.data[0][c] = arr[increment];
+            b[biases.offset + c * biases.colStride] = arr[increment];
             increment += 1;
         }
     }
@@ -352,13 +629,18 @@ public class Matrix implements Serializable {
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
     // Inserts this matrix into an array
     public static void insertIntoArray(float[] arr, int index, Matrix mat) {
+        if (mat.isContiguous()) {
+            System.arraycopy(mat.data, mat.offset, arr, index, mat.rows * mat.cols);
+            return;
+        }
+
         int increment = index;
 
         int rows = mat.getRows();
         int cols = mat.getCols();
         for (int i = 0; i < rows; i++) {
             for (int j = 0; j < cols; j++) {
-                arr[increment + j] = mat.data[i][j];
+                arr[increment + j] = mat.get(i, j);
             }
             increment += cols;
         }
@@ -368,11 +650,7 @@ public class Matrix implements Serializable {
     //return a copy of this matrix
     public Matrix clone() {
         Matrix clone = new Matrix(rows, cols);
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < cols; j++) {
-                clone.data[i][j] = data[i][j];
-            }
-        }
+        insertIntoArray(clone.data, 0, this);
         return clone;
     }
 
@@ -394,22 +672,95 @@ public class Matrix implements Serializable {
         return cols;
     }
 
+    /**
+     * @return A copy of this matrix as a 2D array.
+     * Changing the returned array does not change the matrix
+     */
     public float[][] getData() {
+        float[][] ret = new float[rows][];
+        for (int i = 0; i < rows; i++) {
+            ret[i] = getRow(i);
+        }
+        return ret;
+    }
+
+    /**
+     * @return A copy of one row of this matrix
+     */
+    public float[] getRow(int r) {
+        float[] ret = new float[cols];
+        int idx = offset + r * rowStride;
+        for (int j = 0; j < cols; j++) {
+            ret[j] = data[idx];
+            idx += colStride;
+        }
+        return ret;
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    // Raw access to the flat storage, for kernels that want to loop over it directly
+
+    public float[] getBuffer() {
         return data;
     }
 
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getRowStride() {
+        return rowStride;
+    }
+
+    public int getColStride() {
+        return colStride;
+    }
+
+    /**
+     * @return True if the values are stored row-major with no gaps,
+     * so they can be looped over as data[offset] to data[offset + rows * cols - 1]
+     */
+    public boolean isContiguous() {
+        return colStride == 1 && (rowStride == cols || rows == 1);
+    }
+
+    /**
+     * @return True if the two matrices could share any values.
+     * Only checks the range of the flat array each one covers, so it can be true for interleaved matrices that don't touch
+     */
+    public boolean overlaps(Matrix other) {
+        if (data != other.data || numParams() == 0 || other.numParams() == 0) {
+            return false;
+        }
+        return firstIndex() <= other.lastIndex() && other.firstIndex() <= lastIndex();
+    }
+
+    private int firstIndex() {
+        return offset + Math.min(0, (rows - 1) * rowStride) + Math.min(0, (cols - 1) * colStride);
+    }
+
+    private int lastIndex() {
+        return offset + Math.max(0, (rows - 1) * rowStride) + Math.max(0, (cols - 1) * colStride);
+    }
+
+    private void checkSameShape(Matrix n, String operation) {
+        if (cols != n.cols || rows != n.rows) {
+            throw new IndexOutOfBoundsException(String.format("Matrix sizes do not match for %s: %d, %d, %d, %d",
+                    operation, rows, n.rows, cols, n.cols));
+        }
+    }
+
     //---------------------------------------------------------------------------------------------------------------------------------------------------------
     public static void insertInto(float[] big, float[] small, int index) {
-        for (int i = index; i < index + small.length && i < big.length; i++) {
-            big[i] = small[i - index];
+        int length = Math.min(small.length, big.length - index);
+        if (length > 0) {
+            System.arraycopy(small, 0, big, index, length);
         }
     }
 
     public static float[] subset(float[] arr, int index, int length) {
         float[] ret = new float[length];
-        for (int i = 0; i < length; i++) {
-            ret[i] = arr[i + index];
-        }
+        System.arraycopy(arr, index, ret, 0, length);
         return ret;
     }
 }
@@ -0,0 +1,104 @@
+package network.math;
+
+import java.util.SplittableRandom;
+
+/**
+ * Sparse mutation for the genetic algorithm.
+ * Instead of rolling a random number for every value to see if it mutates,
+ * this samples the gap to the next mutated value from a geometric distribution
+ * and jumps straight to it. With a mutation rate of 5%, that is about 1/20th of the random numbers.
+ * Each mutation uses one random long: 32 bits choose the gap to the next mutation,
+ * and the other 32 choose the size of this one.
+ * Everything mutates a range of a flat array, such as a network's parameter buffer,
+ * which holds the whole chromosome in one place
+ */
+public class Mutation {
+
+    /**
+     * Mutates count values of a flat array starting at offset.
+     * Each value is changed with probability mutationRate, by a uniform amount in [-mutationSize, mutationSize]
+     * @param values Array to mutate in place
+     * @param mutationRate How likely each value is to change. 0 or less changes nothing, 1 or more changes every value
+     * @param mutationSize Largest change to a value
+     * @param keepZeros Leave values that are exactly 0 (pruned weights) at 0.
+     * The random numbers drawn are the same either way
+     */
+    public static void mutate(float[] values, int offset, int count, float mutationRate, float mutationSize,
+                              boolean keepZeros, SplittableRandom random) {
+        mutate(values, offset, count, mutationRate, mutationSize, keepZeros, null, random);
+    }
+
+    /**
+     * Gaussian version of mutate. Each value is changed with probability mutationRate,
+     * by mutationSize times a normal value read from a random place in the table
+     */
+    public static void mutate(float[] values, int offset, int count, float mutationRate, float mutationSize,
+                              boolean keepZeros, NoiseTable table, SplittableRandom random) {
+        if (offset < 0 || count < 0 || offset + count > values.length) {
+            throw new IndexOutOfBoundsException(String.format("Can not mutate %d values at %d of an array of %d", count, offset, values.length));
+        }
+        if (mutationRate <= 0) {
+            return;
+        }
+
+        // log(1 - p), used to turn a uniform number into a geometric gap
+        double logKeep = Math.log1p(-Math.min(mutationRate, 1.0f));
+
+        long position = nextGap(random.nextLong(), logKeep, count);
+        while (position < count) {
+            long bits = random.nextLong();
+
+            int index = offset + (int) position;
+            if (!keepZeros || values[index] != 0) {
+                values[index] += change(bits, mutationSize, table);
+            }
+
+            position += 1 + nextGap(bits, logKeep, count);
+        }
+    }
+
+    /**
+     * Same as mutate(values, ...) on the values of a matrix, in row major order
+     */
+    public static void mutate(Matrix mat, float mutationRate, float mutationSize, boolean keepZeros, SplittableRandom random) {
+        if (mat.isContiguous()) {
+            mutate(mat.getBuffer(), mat.getOffset(), mat.numParams(), mutationRate, mutationSize, keepZeros, random);
+            return;
+        }
+
+        // Views are mutated through a contiguous copy
+        Matrix copy = mat.clone();
+        mutate(copy.getBuffer(), copy.getOffset(), copy.numParams(), mutationRate, mutationSize, keepZeros, random);
+        copy.copyInto(mat);
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    // Size of one mutation from the high 32 bits of random: uniform from the top 24 of them,
+    // or a table entry picked by multiply and shift instead of a modulo
+    private static float change(long random, float mutationSize, NoiseTable table) {
+        if (table == null) {
+            return 2 * mutationSize * (uniform24(random) - 0.5f);
+        }
+        int noiseIndex = (int) (((random >>> 32) * table.getSize()) >>> 32);
+        return mutationSize * table.get(noiseIndex);
+    }
+
+    // Number of values skipped before the next mutation, from the low 32 bits of random.
+    // Geometric: P(gap = k) = (1 - p)^k * p
+    private static long nextGap(long random, double logKeep, long limit) {
+        // Uniform in (0, 1], so the log is finite
+        double u = ((random & 0xFFFFFFFFL) + 1) / 4294967296.0;
+        double gap = Math.floor(Math.log(u) / logKeep);
+
+        // Rates close to 0 can give gaps past the end (or infinite ones)
+        if (!(gap < limit)) {
+            return limit;
+        }
+        return (long) gap;
+    }
+
+    // Uniform float in [0, 1) from the high 24 bits of random
+    private static float uniform24(long random) {
+        return (random >>> 40) * (1.0f / (1 << 24));
+    }
+}
@@ -1,33 +1,36 @@
 package network.math;
 
-import java.util.Random;
-
 /**
  * Global random number generator
  * For easy use of setting the seed
- * For all random numbers
+ * For all random numbers.
+ * Draws from the calling thread's stream in RandomStreams,
+ * so threads do not share (or fight over) one generator
  */
 public class MyRand {
-    private static Random myRand = new Random();
 
     public static void initialize(int seed){
-        myRand = new Random(seed);
+        RandomStreams.initialize(seed);
     }
 
     public static void initialize(){
-        myRand = new Random();
+        RandomStreams.initialize();
     }
 
     public static int randInt(int bound){
-        return myRand.nextInt(bound);
+        return RandomStreams.current().nextInt(bound);
     }
 
     public static float randFloat(){
-        return myRand.nextFloat();
+        return RandomStreams.nextFloat(RandomStreams.current());
+    }
+
+    public static long randLong(){
+        return RandomStreams.current().nextLong();
     }
 
     public static float randNormal() {
-        return (float) myRand.nextGaussian();
+        return RandomStreams.nextGaussian(RandomStreams.current());
     }
 
 }
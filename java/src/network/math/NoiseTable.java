@@ -0,0 +1,166 @@
+package network.math;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.SplittableRandom;
+
+/**
+ * A large block of standard-normal floats, made once from a seed.
+ * Noise for a perturbation is a slice of the table, named by its offset,
+ * so it costs a read instead of a Gaussian sample per value.
+ * Two workers with the same (seed, size) table share noise by sending the offset only.
+ * A table can be saved to a file and memory-mapped, so processes share one copy
+ */
+public class NoiseTable {
+    // Layout of a saved table: seed, number of values, then the values
+    private static final int HEADER_BYTES = 8 + 4;
+
+    private final long seed;
+    private final int size;
+
+    // Heap buffer for a generated table, mapped file for a loaded one
+    private final FloatBuffer noise;
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    /**
+     * Generates a table in memory
+     * @param seed Seed of the noise. Tables with the same seed and size are identical
+     * @param size Number of values. 25 million values is 100MB
+     */
+    public NoiseTable(long seed, int size) {
+        this.seed = seed;
+        this.size = size;
+
+        float[] values = new float[size];
+        SplittableRandom random = new SplittableRandom(seed);
+
+        // Box-Muller gives two independent normals per pair of uniforms
+        for (int i = 0; i < size; i += 2) {
+            double radius = Math.sqrt(-2 * Math.log(1.0 - random.nextDouble()));
+            double angle = 2 * Math.PI * random.nextDouble();
+            values[i] = (float) (radius * Math.cos(angle));
+            if (i + 1 < size) {
+                values[i + 1] = (float) (radius * Math.sin(angle));
+            }
+        }
+
+        this.noise = FloatBuffer.wrap(values);
+    }
+
+    private NoiseTable(long seed, int size, FloatBuffer noise) {
+        this.seed = seed;
+        this.size = size;
+        this.noise = noise;
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    /**
+     * Writes the table to a file, which map can read back
+     */
+    public void save(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            raf.setLength(HEADER_BYTES + 4L * size);
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + 4L * size);
+            bytes.putLong(seed);
+            bytes.putInt(size);
+
+            FloatBuffer out = bytes.asFloatBuffer();
+            for (int i = 0; i < size; i++) {
+                out.put(i, noise.get(i));
+            }
+            bytes.force();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Memory-maps a table written by save. Pages are only read when used,
+     * and processes that map the same file share them
+     */
+    public static NoiseTable map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer bytes = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            long seed = bytes.getLong();
+            int size = bytes.getInt();
+            if (raf.length() < HEADER_BYTES + 4L * size) {
+                throw new IOException("Noise table file is truncated: " + file);
+            }
+
+            // The mapping stays valid after the file is closed
+            return new NoiseTable(seed, size, ((ByteBuffer) bytes.position(HEADER_BYTES)).slice().asFloatBuffer());
+        } finally {
+            raf.close();
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    public float get(int index) {
+        return noise.get(index);
+    }
+
+    /**
+     * @param random Where to draw the offset from
+     * @param count Number of values that will be read
+     * @return A random offset where count values fit in the table
+     */
+    public int sampleOffset(SplittableRandom random, int count) {
+        if (count > size) {
+            throw new IndexOutOfBoundsException("Need " + count + " values but the table has " + size);
+        }
+        return random.nextInt(size - count + 1);
+    }
+
+    /**
+     * Adds scale times the noise at [offset, offset + count) to dst
+     */
+    public void addTo(float[] dst, int dstOffset, int count, int offset, float scale) {
+        checkSlice(offset, count);
+        for (int i = 0; i < count; i++) {
+            dst[dstOffset + i] += scale * noise.get(offset + i);
+        }
+    }
+
+    /**
+     * Adds scale times the noise starting at offset to every value of mat, in row major order
+     * @return The offset after the values that were used
+     */
+    public int addTo(Matrix mat, int offset, float scale) {
+        int count = mat.numParams();
+        if (mat.isContiguous()) {
+            addTo(mat.getBuffer(), mat.getOffset(), count, offset, scale);
+            return offset + count;
+        }
+
+        checkSlice(offset, count);
+        for (int r = 0; r < mat.getRows(); r++) {
+            for (int c = 0; c < mat.getCols(); c++) {
+                mat.set(r, c, mat.get(r, c) + scale * noise.get(offset++));
+            }
+        }
+        return offset;
+    }
+
+    private void checkSlice(int offset, int count) {
+        if (offset < 0 || count < 0 || offset > size - count) {
+            throw new IndexOutOfBoundsException("Noise slice [" + offset + ", " + offset + " + " + count + ") is outside the table of " + size);
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getSize() {
+        return size;
+    }
+}
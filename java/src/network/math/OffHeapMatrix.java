@@ -0,0 +1,153 @@
+package network.math;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A matrix of floats stored outside the Java heap, in a direct or memory-mapped buffer.
+ * Meant for big, long lived data such as the chromosomes of a large population or replay data,
+ * which would otherwise make every garbage collection scan it.
+ * Values are little endian float32 in row-major order with no header, so a mapped file can be opened
+ * from Python with numpy.memmap(path, dtype='<f4', shape=(rows, cols)).
+ * The math kernels work on float[], so rows are copied into a Matrix to compute on them
+ */
+public class OffHeapMatrix {
+    private final int rows;
+    private final int cols;
+    private final FloatBuffer data;
+
+    private OffHeapMatrix(int rows, int cols, ByteBuffer bytes) {
+        if (bytes.capacity() < 4L * rows * cols) {
+            throw new IndexOutOfBoundsException(String.format("%d bytes can not hold a %dx%d matrix", bytes.capacity(), rows, cols));
+        }
+        this.rows = rows;
+        this.cols = cols;
+        this.data = bytes.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    }
+
+    /**
+     * @return A zeroed matrix in a direct buffer
+     */
+    public static OffHeapMatrix allocate(int rows, int cols) {
+        return new OffHeapMatrix(rows, cols, ByteBuffer.allocateDirect(checkedBytes(rows, cols)));
+    }
+
+    /**
+     * Maps a file of rows x cols floats, making it that long if it is shorter.
+     * Writes go to the file, and other processes mapping it see them
+     * @param writable False to map read only
+     */
+    public static OffHeapMatrix map(File file, int rows, int cols, boolean writable) throws IOException {
+        int bytes = checkedBytes(rows, cols);
+        RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+        try {
+            if (writable && raf.length() < bytes) {
+                raf.setLength(bytes);
+            }
+            FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+
+            // The mapping stays valid after the file is closed
+            return new OffHeapMatrix(rows, cols, raf.getChannel().map(mode, 0, bytes));
+        } finally {
+            raf.close();
+        }
+    }
+
+    // A single buffer is limited to 2GB
+    private static int checkedBytes(int rows, int cols) {
+        long bytes = 4L * rows * cols;
+        if (rows < 0 || cols < 0 || bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("A %dx%d off heap matrix does not fit in one buffer", rows, cols));
+        }
+        return (int) bytes;
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    public float get(int r, int c) {
+        return data.get(r * cols + c);
+    }
+
+    public void set(int r, int c, float value) {
+        data.put(r * cols + c, value);
+    }
+
+    /**
+     * Copies row r into dst[offset]
+     */
+    public void getRow(int r, float[] dst, int offset) {
+        FloatBuffer row = data.duplicate();
+        row.position(r * cols);
+        row.get(dst, offset, cols);
+    }
+
+    /**
+     * Copies src[offset] into row r
+     */
+    public void setRow(int r, float[] src, int offset) {
+        FloatBuffer row = data.duplicate();
+        row.position(r * cols);
+        row.put(src, offset, cols);
+    }
+
+    /**
+     * Copies the values of mat, which must be the same size, in
+     */
+    public void copyFrom(Matrix mat) {
+        checkSameShape(mat);
+        for (int r = 0; r < rows; r++) {
+            if (mat.getColStride() == 1) {
+                setRow(r, mat.getBuffer(), mat.getOffset() + r * mat.getRowStride());
+            } else {
+                for (int c = 0; c < cols; c++) {
+                    set(r, c, mat.get(r, c));
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the values into out, which must be the same size
+     * @return out
+     */
+    public Matrix copyInto(Matrix out) {
+        checkSameShape(out);
+        for (int r = 0; r < rows; r++) {
+            if (out.getColStride() == 1) {
+                getRow(r, out.getBuffer(), out.getOffset() + r * out.getRowStride());
+            } else {
+                for (int c = 0; c < cols; c++) {
+                    out.set(r, c, get(r, c));
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return A heap copy of the whole matrix
+     */
+    public Matrix toMatrix() {
+        return copyInto(new Matrix(rows, cols));
+    }
+
+    private void checkSameShape(Matrix mat) {
+        if (mat.getRows() != rows || mat.getCols() != cols) {
+            throw new IndexOutOfBoundsException(String.format("Matrix sizes do not match for off heap copy: %d, %d, %d, %d",
+                    rows, mat.getRows(), cols, mat.getCols()));
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+}
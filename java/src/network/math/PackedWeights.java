@@ -0,0 +1,47 @@
+package network.math;
+
+/**
+ * Weights and biases of a dense layer, laid out for inference.
+ * Each output column is stored as its in weights followed by its bias,
+ * so computing one output reads one contiguous run of memory
+ * instead of striding down a column of the row-major weights.
+ * This is the same layout as the chromosome (see Matrix.insertWeightsBiasesIntoArray).
+ * It is a copy, so the layer has to repack it when its weights change
+ */
+public class PackedWeights {
+    private final int inputs;
+    private final int outputs;
+
+    // outputs runs of (inputs + 1) values
+    private final float[] data;
+
+    public PackedWeights(Matrix weights, Matrix biases) {
+        this.inputs = weights.getRows();
+        this.outputs = weights.getCols();
+        this.data = new float[(inputs + 1) * outputs];
+        repack(weights, biases);
+    }
+
+    /**
+     * Copies the weights and biases in again, reusing this buffer
+     */
+    public void repack(Matrix weights, Matrix biases) {
+        if (weights.getRows() != inputs || weights.getCols() != outputs || biases.getCols() != outputs) {
+            throw new IndexOutOfBoundsException(String.format("Can not repack %dx%d weights into %dx%d packed weights",
+                    weights.getRows(), weights.getCols(), inputs, outputs));
+        }
+        Matrix.insertWeightsBiasesIntoArray(data, 0, weights, biases);
+    }
+
+    public int getInputs() {
+        return inputs;
+    }
+
+    public int getOutputs() {
+        return outputs;
+    }
+
+    float[] getData() {
+        return data;
+    }
+}
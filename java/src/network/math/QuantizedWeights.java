@@ -0,0 +1,85 @@
+package network.math;
+
+/**
+ * Weights of a dense layer rounded to int8, for evaluation-only inference.
+ * Each output column gets its own scale (its largest absolute weight over 127),
+ * and its weights are stored as one contiguous run of bytes like PackedWeights,
+ * so reading the weights takes a quarter of the memory of floats.
+ * Biases stay floats, they are added after the integer multiply.
+ * It is a copy, rounding error included, so it is rebuilt rather than updated when the weights change
+ */
+public class QuantizedWeights {
+    // Largest magnitude of a quantized value
+    static final int LEVELS = 127;
+
+    private final int inputs;
+    private final int outputs;
+
+    // outputs runs of inputs values
+    private final byte[] data;
+
+    // Weight w[k][j] is about data[j * inputs + k] * scales[j]
+    private final float[] scales;
+    private final float[] biases;
+
+    public QuantizedWeights(Matrix weights, Matrix biases) {
+        if (biases.getCols() != weights.getCols()) {
+            throw new IndexOutOfBoundsException(String.format("Can not quantize %dx%d weights with %d biases",
+                    weights.getRows(), weights.getCols(), biases.getCols()));
+        }
+
+        this.inputs = weights.getRows();
+        this.outputs = weights.getCols();
+        this.data = new byte[inputs * outputs];
+        this.scales = new float[outputs];
+        this.biases = biases.getRow(0);
+
+        for (int j = 0; j < outputs; j++) {
+            float max = 0;
+            for (int k = 0; k < inputs; k++) {
+                max = Math.max(max, Math.abs(weights.get(k, j)));
+            }
+
+            // An all zero column stays zero with any scale
+            float scale = max > 0 ? max / LEVELS : 1;
+            scales[j] = scale;
+
+            for (int k = 0; k < inputs; k++) {
+                data[j * inputs + k] = (byte) Math.round(weights.get(k, j) / scale);
+            }
+        }
+    }
+
+    /**
+     * @return The weights as floats again, with the rounding error of the quantization
+     */
+    public Matrix dequantize() {
+        Matrix weights = new Matrix(inputs, outputs);
+        for (int j = 0; j < outputs; j++) {
+            for (int k = 0; k < inputs; k++) {
+                weights.set(k, j, data[j * inputs + k] * scales[j]);
+            }
+        }
+        return weights;
+    }
+
+    public int getInputs() {
+        return inputs;
+    }
+
+    public int getOutputs() {
+        return outputs;
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    float[] getScales() {
+        return scales;
+    }
+
+    float[] getBiases() {
+        return biases;
+    }
+}
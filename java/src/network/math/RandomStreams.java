@@ -0,0 +1,116 @@
+package network.math;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Source of independent random number streams, all derived from one root seed.
+ * A stream is picked by a list of keys, for example (INDIVIDUAL, epoch, index),
+ * and the same seed and keys always give the same stream, no matter which thread
+ * asks for it or in what order. This keeps seeded runs reproducible when work is
+ * spread over threads.
+ * Each thread also has a current stream, which MyRand and the methods without a
+ * SplittableRandom parameter draw from
+ */
+public class RandomStreams {
+    // Key domains, so streams for different purposes never collide
+    public static final long THREAD = 1;
+    public static final long INDIVIDUAL = 2;
+    public static final long EPISODE = 3;
+
+    private static volatile long rootSeed = mix64(System.nanoTime());
+
+    // Changes on every initialize, so threads know to rederive their current stream
+    private static volatile long generation = 0;
+
+    // Numbers threads in the order they first draw a random number
+    private static final AtomicLong nextThreadIndex = new AtomicLong();
+
+    private static final ThreadLocal<ThreadStream> threadStream = new ThreadLocal<ThreadStream>();
+
+    private static class ThreadStream {
+        long generation;
+        SplittableRandom random;
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    /**
+     * Sets the root seed. Every stream, including each thread's current stream, restarts from it
+     */
+    public static synchronized void initialize(long seed) {
+        rootSeed = mix64(seed);
+        nextThreadIndex.set(0);
+        generation++;
+    }
+
+    /**
+     * Uses a seed from the clock, for unseeded runs
+     */
+    public static void initialize() {
+        initialize(System.nanoTime() ^ mix64(System.currentTimeMillis()));
+    }
+
+    /**
+     * @param keys What the stream is for, e.g. (INDIVIDUAL, epoch, index)
+     * @return A new stream that only depends on the root seed and the keys
+     */
+    public static SplittableRandom stream(long... keys) {
+        long h = rootSeed;
+        for (long key : keys) {
+            h = mix64(h ^ mix64(key + 0x9E3779B97F4A7C15L));
+        }
+        return new SplittableRandom(h);
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    /**
+     * @return This thread's current stream. The first one a thread gets is
+     * stream(THREAD, n) for the nth thread to ask, so it only repeats between runs
+     * if threads start drawing in the same order. Use setCurrent or explicit streams when that matters
+     */
+    public static SplittableRandom current() {
+        ThreadStream ts = threadStream.get();
+        if (ts == null) {
+            ts = new ThreadStream();
+            threadStream.set(ts);
+        }
+        if (ts.random == null || ts.generation != generation) {
+            ts.generation = generation;
+            ts.random = stream(THREAD, nextThreadIndex.getAndIncrement());
+        }
+        return ts.random;
+    }
+
+    /**
+     * Makes random the current stream of this thread
+     * @return The stream that was current before, so it can be put back
+     */
+    public static SplittableRandom setCurrent(SplittableRandom random) {
+        SplittableRandom previous = current();
+        threadStream.get().random = random;
+        return previous;
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    // Values that SplittableRandom does not have in Java 8
+
+    // Uniform float in [0, 1)
+    public static float nextFloat(SplittableRandom random) {
+        return (random.nextInt() >>> 8) * (1.0f / (1 << 24));
+    }
+
+    // Standard normal, with the Box-Muller transform
+    public static float nextGaussian(SplittableRandom random) {
+        // 1 - u is in (0, 1], so the log is finite
+        double u1 = 1.0 - random.nextDouble();
+        double u2 = random.nextDouble();
+        return (float) (Math.sqrt(-2 * Math.log(u1)) * Math.cos(2 * Math.PI * u2));
+    }
+
+    // The SplitMix64 finalizer. Spreads every input bit over the whole output
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,113 @@
+package network.math;
+
+/**
+ * Weights and biases of a dense layer with only the nonzero weights kept, for pruned layers.
+ * Stored as compressed sparse rows of the transposed weights: one row per output,
+ * holding the input index and value of each nonzero weight, in the same output-major order as PackedWeights.
+ * Computing an output then only reads its nonzero weights. The index lookups cost more than a dense dot,
+ * so layers only switch to this below DENSITY_CUTOFF (see useSparse).
+ * It is a copy, so it is rebuilt when the weights change
+ */
+public class SparseWeights {
+    // Fraction of nonzero weights below which the sparse kernel is faster than the packed one.
+    // From SparseBenchmark: sparse won at every size and batch up to 0.3, lost from 0.4 on,
+    // and the two were even around 0.35
+    public static final float DENSITY_CUTOFF = 0.35f;
+
+    private final int inputs;
+    private final int outputs;
+
+    // Output j has its nonzero weights at [starts[j], starts[j + 1])
+    private final int[] starts;
+    private final int[] indices;
+    private final float[] values;
+
+    private final float[] biases;
+
+    public SparseWeights(Matrix weights, Matrix biases) {
+        if (biases.getCols() != weights.getCols()) {
+            throw new IndexOutOfBoundsException(String.format("Can not make sparse weights from %dx%d weights with %d biases",
+                    weights.getRows(), weights.getCols(), biases.getCols()));
+        }
+
+        this.inputs = weights.getRows();
+        this.outputs = weights.getCols();
+        this.biases = biases.getRow(0);
+
+        int nonZero = countNonZero(weights);
+        this.starts = new int[outputs + 1];
+        this.indices = new int[nonZero];
+        this.values = new float[nonZero];
+
+        int n = 0;
+        for (int j = 0; j < outputs; j++) {
+            starts[j] = n;
+            for (int k = 0; k < inputs; k++) {
+                float w = weights.get(k, j);
+                if (w != 0) {
+                    indices[n] = k;
+                    values[n] = w;
+                    n++;
+                }
+            }
+        }
+        starts[outputs] = n;
+    }
+
+    /**
+     * @return Fraction of the values in m that are not 0
+     */
+    public static float density(Matrix m) {
+        return m.numParams() == 0 ? 1 : (float) countNonZero(m) / m.numParams();
+    }
+
+    /**
+     * @return Whether a layer with these weights should run on the sparse kernel
+     */
+    public static boolean useSparse(Matrix weights) {
+        return density(weights) < DENSITY_CUTOFF;
+    }
+
+    private static int countNonZero(Matrix m) {
+        int count = 0;
+        for (int i = 0; i < m.getRows(); i++) {
+            for (int j = 0; j < m.getCols(); j++) {
+                if (m.get(i, j) != 0) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public int getInputs() {
+        return inputs;
+    }
+
+    public int getOutputs() {
+        return outputs;
+    }
+
+    /**
+     * @return Number of weights kept
+     */
+    public int getNonZero() {
+        return values.length;
+    }
+
+    int[] getStarts() {
+        return starts;
+    }
+
+    int[] getIndices() {
+        return indices;
+    }
+
+    float[] getValues() {
+        return values;
+    }
+
+    float[] getBiases() {
+        return biases;
+    }
+}
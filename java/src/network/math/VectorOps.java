@@ -0,0 +1,148 @@
+package network.math;
+
+/**
+ * Kernels over contiguous runs of a float array.
+ * This class is the plain scalar version, which works on any JVM.
+ * When running on JDK 17+ with --add-modules jdk.incubator.vector, INSTANCE is
+ * replaced by VectorApiOps (built from src-vector by the vector-api maven profile),
+ * which does the same work with SIMD instructions.
+ * Run with -Dnetwork.math.vector=false to force the scalar version
+ */
+public class VectorOps {
+    private static final String VECTOR_CLASS = "network.math.VectorApiOps";
+
+    public static final VectorOps INSTANCE = load();
+
+    private static VectorOps load() {
+        if (!Boolean.parseBoolean(System.getProperty("network.math.vector", "true"))) {
+            return new VectorOps();
+        }
+
+        try {
+            return (VectorOps) Class.forName(VECTOR_CLASS).getDeclaredConstructor().newInstance();
+        } catch (Throwable e) {
+            // Not compiled in, running on Java 8, or the incubator module is not added.
+            // All of these mean the scalar code is used
+            return new VectorOps();
+        }
+    }
+
+    /**
+     * @return True if this backend uses SIMD instructions
+     */
+    public boolean isVectorized() {
+        return false;
+    }
+
+    /**
+     * @return Name of the backend, for logging
+     */
+    public String getName() {
+        return "scalar";
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    // y[yOff + i] += alpha * x[xOff + i]
+    public void axpy(float alpha, float[] x, int xOff, float[] y, int yOff, int n) {
+        for (int i = 0; i < n; i++) {
+            y[yOff + i] += alpha * x[xOff + i];
+        }
+    }
+
+    // Sum of a[i] * b[i]
+    public float dot(float[] a, int aOff, float[] b, int bOff, int n) {
+        float sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += a[aOff + i] * b[bOff + i];
+        }
+        return sum;
+    }
+
+    // out[i] = a[i] + b[i]
+    public void add(float[] a, int aOff, float[] b, int bOff, float[] out, int outOff, int n) {
+        for (int i = 0; i < n; i++) {
+            out[outOff + i] = a[aOff + i] + b[bOff + i];
+        }
+    }
+
+    // out[i] = a[i] - b[i]
+    public void subtract(float[] a, int aOff, float[] b, int bOff, float[] out, int outOff, int n) {
+        for (int i = 0; i < n; i++) {
+            out[outOff + i] = a[aOff + i] - b[bOff + i];
+        }
+    }
+
+    // out[i] = a[i] * b[i]
+    public void multiply(float[] a, int aOff, float[] b, int bOff, float[] out, int outOff, int n) {
+        for (int i = 0; i < n; i++) {
+            out[outOff + i] = a[aOff + i] * b[bOff + i];
+        }
+    }
+
+    // out[i] = a[i] + value
+    public void add(float[] a, int aOff, float value, float[] out, int outOff, int n) {
+        for (int i = 0; i < n; i++) {
+            out[outOff + i] = a[aOff + i] + value;
+        }
+    }
+
+    // out[i] = a[i] * value
+    public void multiply(float[] a, int aOff, float value, float[] out, int outOff, int n) {
+        for (int i = 0; i < n; i++) {
+            out[outOff + i] = a[aOff + i] * value;
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------------------------------------------------------------------
+    // In place activations
+
+    public void sigmoid(float[] x, int off, int n) {
+        for (int i = off; i < off + n; i++) {
+            x[i] = Activations.sigmoid(x[i]);
+        }
+    }
+
+    public void tanh(float[] x, int off, int n) {
+        for (int i = off; i < off + n; i++) {
+            x[i] = Activations.tanh(x[i]);
+        }
+    }
+
+    public void relu(float[] x, int off, int n) {
+        for (int i = off; i < off + n; i++) {
+            x[i] = Activations.relu(x[i]);
+        }
+    }
+
+    /**
+     * Applies one of the Activations types in place
+     */
+    public void activate(float[] x, int off, int n, int activation) {
+        switch (activation) {
+            case Activations.RELU:
+                relu(x, off, n);
+                break;
+            case Activations.SIGMOID:
+                sigmoid(x, off, n);
+                break;
+            case Activations.NONE:
+                break;
+            case Activations.TANH:
+                tanh(x, off, n);
+                break;
+            case Activations.FAST_SIGMOID:
+                for (int i = off; i < off + n; i++) {
+                    x[i] = Activations.fastSigmoid(x[i]);
+                }
+                break;
+            case Activations.FAST_TANH:
+                for (int i = off; i < off + n; i++) {
+                    x[i] = Activations.fastTanh(x[i]);
+                }
+                break;
+            default:
+                System.err.println("Error: Unknown activation " + activation);
+                break;
+        }
+    }
+}
@@ -19,15 +19,19 @@ import edu.cwru.sepia.environment.model.state.State;
 import edu.cwru.sepia.environment.model.state.StateCreator;
 import edu.cwru.sepia.environment.model.state.Unit;
 import edu.cwru.sepia.environment.model.state.XmlStateCreator;
-import network.math.MyRand;
+import network.math.RandomStreams;
 
 import java.io.IOException;
+import java.util.SplittableRandom;
 
 public class RandomStateCreator implements StateCreator {
     private static final long serialVersionUID = 1L;
 
     private final XmlStateCreator stateCreator;
 
+    // Number of states made so far. Each one gets its own random stream
+    private long episode = 0;
+
     public RandomStateCreator(XmlStateCreator stateCreator) {
         this.stateCreator = stateCreator;
     }
@@ -37,8 +41,9 @@ public class RandomStateCreator implements StateCreator {
         try
         {
             State state = stateCreator.createState();
-            randomizeUnitLocations(state, 0);
-            randomizeUnitLocations(state, 1);
+            SplittableRandom random = RandomStreams.stream(RandomStreams.EPISODE, episode++);
+            randomizeUnitLocations(state, 0, random);
+            randomizeUnitLocations(state, 1, random);
             return state;
         }
         catch(Exception ex)
@@ -49,6 +54,11 @@ public class RandomStateCreator implements StateCreator {
     }
 
     public void randomizeUnitLocations(State state, int playernum)
+    {
+        randomizeUnitLocations(state, playernum, RandomStreams.current());
+    }
+
+    public void randomizeUnitLocations(State state, int playernum, SplittableRandom random)
     {
         int xCenter = 4;
         int xWidth = 6;
@@ -60,8 +70,8 @@ public class RandomStateCreator implements StateCreator {
             int x = -1;
             int y = -1;
             do {
-                x = MyRand.randInt(xWidth) + xCenter - xWidth / 2;
-                y = MyRand.randInt(yWidth) + yCenter - yWidth / 2;
+                x = random.nextInt(xWidth) + xCenter - xWidth / 2;
+                y = random.nextInt(yWidth) + yCenter - yWidth / 2;
 
                 // Units expect to be player 1, on the left
                 // Flip this calculation so other units spawn on the right
@@ -0,0 +1,17 @@
+import network.math.Activations;
+import network.math.Matrix;
+
+/**
+ * Plain reference for the dense kernels: act(input * weights + biases), from Matrix.dot
+ */
+class DenseReference {
+    static Matrix feedForward(Matrix input, Matrix weights, Matrix biases, int activation) {
+        Matrix out = input.dot(weights);
+        for (int i = 0; i < out.getRows(); i++) {
+            for (int j = 0; j < out.getCols(); j++) {
+                out.set(i, j, Activations.apply(out.get(i, j) + biases.get(0, j), activation));
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,136 @@
+import network.Network;
+import network.RecurrentState;
+import network.layers.DenseLayer;
+import network.math.Matrix;
+import network.math.MyRand;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestBackpropagation {
+
+    private static Network makeNetwork() {
+        Network network = new Network();
+        network.addLayer(new DenseLayer(5, 7, "tanh"));
+        network.addLayer(new DenseLayer(7, 6, "sigmoid"));
+        network.addLayer(new DenseLayer(6, 3, "none"));
+        network.setBackpropWindow(1);
+        return network;
+    }
+
+    // Half the squared error, summed over every row
+    private static double loss(Network network, Matrix input, Matrix target) {
+        Matrix output = network.feedForward(input);
+        double sum = 0;
+        for (int r = 0; r < output.getRows(); r++) {
+            for (int c = 0; c < output.getCols(); c++) {
+                double e = output.get(r, c) - target.get(r, c);
+                sum += 0.5 * e * e;
+            }
+        }
+        return sum;
+    }
+
+    private static Matrix lossGradient(Matrix output, Matrix target) {
+        Matrix gradient = new Matrix(output.getRows(), output.getCols());
+        for (int r = 0; r < output.getRows(); r++) {
+            for (int c = 0; c < output.getCols(); c++) {
+                gradient.set(r, c, output.get(r, c) - target.get(r, c));
+            }
+        }
+        return gradient;
+    }
+
+    @Test
+    public void testMatchesFiniteDifferences() {
+        MyRand.initialize(81);
+        Network network = makeNetwork();
+        Matrix input = Matrix.randomUniform(4, 5, 1.0f);
+        Matrix target = Matrix.randomUniform(4, 3, 1.0f);
+
+        network.zeroGradients();
+        Matrix output = network.feedForward(input);
+        Matrix inputGradient = network.backward(lossGradient(output, target)).clone();
+        float[] gradients = network.getGradients().clone();
+
+        // Every parameter, nudged both ways in the buffer
+        float[] params = network.getParameterBuffer();
+        float eps = 1e-2f;
+        for (int i = 0; i < params.length; i++) {
+            float original = params[i];
+            params[i] = original + eps;
+            network.parametersChanged();
+            double up = loss(network, input, target);
+            params[i] = original - eps;
+            network.parametersChanged();
+            double down = loss(network, input, target);
+            params[i] = original;
+            network.parametersChanged();
+
+            assertEquals("parameter " + i, (up - down) / (2 * eps), gradients[i], 2e-3);
+        }
+
+        // And the input
+        for (int r = 0; r < 4; r++) {
+            for (int c = 0; c < 5; c++) {
+                Matrix nudged = input.clone();
+                nudged.set(r, c, input.get(r, c) + eps);
+                double up = loss(network, nudged, target);
+                nudged.set(r, c, input.get(r, c) - eps);
+                double down = loss(network, nudged, target);
+                assertEquals((up - down) / (2 * eps), inputGradient.get(r, c), 2e-3);
+            }
+        }
+    }
+
+    @Test
+    public void testGradientsSumUntilZeroed() {
+        MyRand.initialize(82);
+        Network network = makeNetwork();
+        Matrix input = Matrix.randomUniform(1, 5, 1.0f);
+        Matrix target = Matrix.randomUniform(1, 3, 1.0f);
+
+        network.zeroGradients();
+        network.backward(lossGradient(network.feedForward(input), target));
+        float[] once = network.getGradients().clone();
+        network.backward(lossGradient(network.feedForward(input), target));
+
+        float[] twice = network.getGradients();
+        for (int i = 0; i < once.length; i++) {
+            assertEquals(2 * once[i], twice[i], 1e-5f);
+        }
+
+        network.zeroGradients();
+        for (float g : network.getGradients()) {
+            assertEquals(0, g, 0.0f);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNeedsWindow() {
+        MyRand.initialize(84);
+        Network network = makeNetwork();
+        network.setBackpropWindow(0);
+        network.feedForward(Matrix.randomUniform(1, 5, 1.0f));
+        network.backward(new Matrix(1, 3));
+    }
+
+    @Test
+    public void testDescentLowersLoss() {
+        MyRand.initialize(83);
+        Network network = makeNetwork();
+        Matrix input = Matrix.randomUniform(8, 5, 1.0f);
+        Matrix target = Matrix.randomUniform(8, 3, 0.5f);
+        RecurrentState state = network.newState();
+
+        double start = loss(network, input, target);
+        for (int step = 0; step < 200; step++) {
+            network.zeroGradients();
+            Matrix output = network.feedForward(input, state);
+            network.backward(lossGradient(output, target), state);
+            network.applyGradients(0.05f);
+        }
+
+        assertTrue(loss(network, input, target) < start / 4);
+    }
+}
@@ -0,0 +1,71 @@
+import network.Network;
+import network.layers.DenseLayer;
+import network.layers.LSTMLayer;
+import network.layers.RecurrentLayer;
+import network.math.Matrix;
+import network.math.MyRand;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestBatchedFeedForward {
+
+    private static Network makeNetwork() {
+        Network network = new Network();
+        network.addLayer(new RecurrentLayer(10, 16));
+        network.addLayer(new LSTMLayer(16, 12));
+        network.addLayer(new DenseLayer(12, 8, "sigmoid"));
+        return network;
+    }
+
+    @Test
+    public void testRowsMatchSeparateNetworks() {
+        MyRand.initialize(21);
+        int batch = 4;
+        Network batched = makeNetwork();
+
+        Network[] single = new Network[batch];
+        for (int i = 0; i < batch; i++) {
+            single[i] = batched.clone();
+        }
+
+        // Several steps, so each row has to keep its own state
+        for (int step = 0; step < 5; step++) {
+            Matrix inputs = Matrix.randomUniform(batch, 10, 1.0f);
+            Matrix outputs = batched.feedForward(inputs);
+            assertEquals(batch, outputs.getRows());
+
+            for (int i = 0; i < batch; i++) {
+                Matrix expected = single[i].feedForward(inputs.rowView(i));
+                assertArrayEquals(expected.getRow(0), outputs.getRow(i), 1e-6f);
+            }
+        }
+    }
+
+    @Test
+    public void testBatchSizeChangeKeepsRows() {
+        MyRand.initialize(22);
+        Network batched = makeNetwork();
+        Network first = batched.clone();
+
+        Matrix inputs = Matrix.randomUniform(3, 10, 1.0f);
+        batched.feedForward(inputs);
+        first.feedForward(inputs.rowView(0));
+
+        // Row 0 keeps its state when the batch shrinks
+        Matrix next = Matrix.randomUniform(1, 10, 1.0f);
+        assertArrayEquals(first.feedForward(next).getRow(0), batched.feedForward(next).getRow(0), 1e-6f);
+    }
+
+    @Test
+    public void testResetState() {
+        MyRand.initialize(23);
+        Network network = makeNetwork();
+        Matrix input = Matrix.randomUniform(2, 10, 1.0f);
+
+        float[] firstStep = network.feedForward(input).getRow(1);
+        network.feedForward(input);
+        network.resetState();
+        assertArrayEquals(firstStep, network.feedForward(input).getRow(1), 0.0f);
+    }
+}
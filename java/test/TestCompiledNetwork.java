@@ -0,0 +1,67 @@
+import network.CompiledNetwork;
+import network.Network;
+import network.RecurrentState;
+import network.layers.DenseLayer;
+import network.layers.LSTMLayer;
+import network.layers.RecurrentLayer;
+import network.math.Matrix;
+import network.math.MyRand;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestCompiledNetwork {
+
+    private static Network makeNetwork(boolean fastMath) {
+        Network network = new Network();
+        network.setFastMath(fastMath);
+        network.addLayer(new RecurrentLayer(10, 16));
+        network.addLayer(new LSTMLayer(16, 12));
+        network.addLayer(new DenseLayer(12, 8, "sigmoid"));
+        return network;
+    }
+
+    @Test
+    public void testMatchesNetwork() {
+        for (boolean fastMath : new boolean[] {false, true}) {
+            MyRand.initialize(41);
+            Network network = makeNetwork(fastMath);
+            CompiledNetwork compiled = network.compile();
+
+            for (int step = 0; step < 5; step++) {
+                Matrix input = Matrix.randomUniform(1, 10, 1.0f);
+                assertArrayEquals(network.feedForward(input).getRow(0), compiled.feedForward(input).getRow(0), 0.0f);
+            }
+        }
+    }
+
+    @Test
+    public void testBatchedStates() {
+        MyRand.initialize(42);
+        Network network = makeNetwork(false);
+        CompiledNetwork compiled = network.compile();
+        RecurrentState batched = compiled.newState(3);
+        RecurrentState[] single = {network.newState(), network.newState(), network.newState()};
+
+        for (int step = 0; step < 4; step++) {
+            Matrix inputs = Matrix.randomUniform(3, 10, 1.0f);
+            Matrix outputs = compiled.feedForward(inputs, batched);
+            for (int i = 0; i < 3; i++) {
+                assertArrayEquals(network.feedForward(inputs.rowView(i), single[i]).getRow(0), outputs.getRow(i), 0.0f);
+            }
+        }
+    }
+
+    @Test
+    public void testPlanKeepsWeightsWhenNetworkChanges() {
+        MyRand.initialize(43);
+        Network network = makeNetwork(false);
+        Network original = network.clone();
+        CompiledNetwork compiled = network.compile();
+
+        network.mutate(1.0f, 1.0f);
+
+        Matrix input = Matrix.randomUniform(1, 10, 1.0f);
+        assertArrayEquals(original.feedForward(input).getRow(0), compiled.feedForward(input).getRow(0), 0.0f);
+    }
+}
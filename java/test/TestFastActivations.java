@@ -0,0 +1,61 @@
+import network.math.Activations;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestFastActivations {
+    // Step through the float bit patterns. 257 is prime, so every exponent
+    // is hit with many different mantissas. This is about 16 million floats
+    private static final long BIT_STEP = 257;
+
+    @Test
+    public void testFastTanhErrorBound() {
+        double maxError = 0;
+        for (long bits = 0; bits <= 0xFFFFFFFFL; bits += BIT_STEP) {
+            float x = Float.intBitsToFloat((int) bits);
+            if (Float.isNaN(x)) {
+                continue;
+            }
+            double error = Math.abs(Activations.fastTanh(x) - Math.tanh(x));
+            maxError = Math.max(maxError, error);
+        }
+
+        assertTrue("Max fastTanh error " + maxError, maxError <= Activations.FAST_TANH_MAX_ERROR);
+    }
+
+    @Test
+    public void testFastSigmoidErrorBound() {
+        double maxError = 0;
+        for (long bits = 0; bits <= 0xFFFFFFFFL; bits += BIT_STEP) {
+            float x = Float.intBitsToFloat((int) bits);
+            if (Float.isNaN(x)) {
+                continue;
+            }
+            double error = Math.abs(Activations.fastSigmoid(x) - 1.0 / (1 + Math.exp(-x)));
+            maxError = Math.max(maxError, error);
+        }
+
+        assertTrue("Max fastSigmoid error " + maxError, maxError <= Activations.FAST_SIGMOID_MAX_ERROR);
+    }
+
+    @Test
+    public void testErrorBoundNearZero() {
+        // The useful input range, at a much finer step
+        for (float x = -10; x <= 10; x += 1e-4f) {
+            assertEquals(Math.tanh(x), Activations.fastTanh(x), Activations.FAST_TANH_MAX_ERROR);
+            assertEquals(1.0 / (1 + Math.exp(-x)), Activations.fastSigmoid(x), Activations.FAST_SIGMOID_MAX_ERROR);
+        }
+    }
+
+    @Test
+    public void testSpecialValues() {
+        assertEquals(1.0f, Activations.fastTanh(Float.POSITIVE_INFINITY), 0);
+        assertEquals(-1.0f, Activations.fastTanh(Float.NEGATIVE_INFINITY), 0);
+        assertEquals(1.0f, Activations.fastSigmoid(Float.POSITIVE_INFINITY), 0);
+        assertEquals(0.0f, Activations.fastSigmoid(Float.NEGATIVE_INFINITY), 0);
+        assertEquals(0.5f, Activations.fastSigmoid(0), 0);
+        assertEquals(0.0f, Activations.fastTanh(0), 0);
+        assertTrue(Float.isNaN(Activations.fastTanh(Float.NaN)));
+        assertTrue(Float.isNaN(Activations.fastSigmoid(Float.NaN)));
+    }
+}
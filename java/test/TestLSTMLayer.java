@@ -0,0 +1,63 @@
+import network.layers.LSTMLayer;
+import network.math.Activations;
+import network.math.Matrix;
+import network.math.MyRand;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestLSTMLayer {
+
+    @Test
+    public void testChromosomeRoundTrip() {
+        MyRand.initialize(51);
+        LSTMLayer layer = new LSTMLayer(5, 3);
+
+        float[] arr = new float[2 + layer.numParams()];
+        layer.insertIntoArray(arr, 2);
+        LSTMLayer copy = (LSTMLayer) layer.fromLargerArray(arr, 2);
+
+        for (int gate = 0; gate < 4; gate++) {
+            for (int r = 0; r < 8; r++) {
+                assertArrayEquals(layer.getGateWeights(gate).getRow(r), copy.getGateWeights(gate).getRow(r), 0.0f);
+            }
+            assertArrayEquals(layer.getGateBiases(gate).getRow(0), copy.getGateBiases(gate).getRow(0), 0.0f);
+        }
+
+        float[] again = new float[arr.length];
+        copy.insertIntoArray(again, 2);
+        assertArrayEquals(arr, again, 0.0f);
+    }
+
+    @Test
+    public void testMatchesGateByGate() {
+        MyRand.initialize(52);
+        LSTMLayer layer = new LSTMLayer(5, 3);
+
+        Matrix output = new Matrix(1, 3);
+        Matrix cellState = new Matrix(1, 3);
+
+        for (int step = 0; step < 4; step++) {
+            Matrix input = Matrix.randomUniform(1, 5, 1.0f);
+            Matrix combined = output.concatenateRow(input);
+
+            Matrix forget = gate(layer, LSTMLayer.FORGET, combined, Activations.SIGMOID);
+            Matrix update = gate(layer, LSTMLayer.UPDATE, combined, Activations.SIGMOID);
+            Matrix candidates = gate(layer, LSTMLayer.CANDIDATE, combined, Activations.TANH);
+            Matrix outFilter = gate(layer, LSTMLayer.OUTPUT, combined, Activations.SIGMOID);
+
+            cellState = cellState.pointwiseMultiply(forget).add(candidates.pointwiseMultiply(update));
+            Matrix cellTanh = cellState.clone();
+            Activations.applyActivation(cellTanh, Activations.TANH);
+            output = outFilter.pointwiseMultiply(cellTanh);
+
+            assertArrayEquals(output.getRow(0), layer.feedForward(input).getRow(0), 1e-6f);
+        }
+    }
+
+    private static Matrix gate(LSTMLayer layer, int gate, Matrix combined, int activation) {
+        Matrix m = combined.dot(layer.getGateWeights(gate)).add(layer.getGateBiases(gate));
+        Activations.applyActivation(m, activation);
+        return m;
+    }
+}
@@ -0,0 +1,66 @@
+import network.math.Gemm;
+import network.math.Matrix;
+import network.math.MyRand;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestMatrixDot {
+    // Shapes around and across the block sizes, including single rows and columns
+    private static final int[][] SHAPES = {
+            {1, 1, 1}, {1, 16, 8}, {2, 3, 4}, {7, 26, 16}, {33, 65, 257},
+            {64, 64, 64}, {100, 16, 8}, {5, 130, 1}, {40, 1, 300}
+    };
+
+    @Test
+    public void testBlockedMatchesNaive() {
+        MyRand.initialize(1);
+
+        for (int[] shape : SHAPES) {
+            Matrix a = Matrix.randomUniform(shape[0], shape[1], 1.0f);
+            Matrix b = Matrix.randomUniform(shape[1], shape[2], 1.0f);
+
+            Matrix expected = new Matrix(shape[0], shape[2]);
+            Matrix actual = new Matrix(shape[0], shape[2]);
+
+            Gemm.naive(a, b, expected);
+            Gemm.blocked(a, b, actual);
+
+            assertMatrixEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testDotMatchesNaive() {
+        MyRand.initialize(2);
+
+        for (int[] shape : SHAPES) {
+            Matrix a = Matrix.randomUniform(shape[0], shape[1], 1.0f);
+            Matrix b = Matrix.randomUniform(shape[1], shape[2], 1.0f);
+
+            Matrix expected = new Matrix(shape[0], shape[2]);
+            Gemm.naive(a, b, expected);
+
+            assertMatrixEquals(expected, a.dot(b));
+        }
+    }
+
+    @Test
+    public void testDotSmallExample() {
+        Matrix a = new Matrix(new float[][] {{1, 2, 3}, {4, 5, 6}});
+        Matrix b = new Matrix(new float[][] {{1, 0}, {0, 1}, {2, 2}});
+
+        Matrix c = a.dot(b);
+        assertArrayEquals(new float[] {7, 8}, c.getRow(0), 0);
+        assertArrayEquals(new float[] {16, 17}, c.getRow(1), 0);
+    }
+
+    // Both kernels sum each output's terms in the same order, so the floats are identical
+    private static void assertMatrixEquals(Matrix expected, Matrix actual) {
+        assertEquals(expected.getRows(), actual.getRows());
+        assertEquals(expected.getCols(), actual.getCols());
+        for (int r = 0; r < expected.getRows(); r++) {
+            assertArrayEquals(expected.getRow(r), actual.getRow(r), 0.0f);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+import network.math.Matrix;
+import org.junit.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.Assert.*;
+
+public class TestMatrixInto {
+    private static final int ROWS = 3;
+    private static final int COLS = 5;
+
+    // Value left around padded views, which no op should touch
+    private static final float PADDING = 42;
+
+    private interface FloatOp {
+        float apply(float x, float y);
+    }
+
+    private interface MatrixOp {
+        Matrix apply(Matrix a, Matrix b);
+    }
+
+    private interface IntoOp {
+        Matrix apply(Matrix a, Matrix b, Matrix out);
+    }
+
+    private static Matrix random(int rows, int cols, long seed) {
+        return Matrix.randomUniform(rows, cols, 1.0f, new SplittableRandom(seed));
+    }
+
+    // A view inside a bigger matrix filled with PADDING, so its rows are not next to each other
+    private static Matrix padded(int rows, int cols) {
+        Matrix big = new Matrix(rows + 2, cols + 3);
+        big.addInPlace(PADDING);
+        return big.subMatrix(1, 2, rows, cols);
+    }
+
+    // A view whose columns are not next to each other
+    private static Matrix transposed(int rows, int cols) {
+        return new Matrix(cols, rows).transposeView();
+    }
+
+    private static Matrix copyTo(Matrix m, Matrix view) {
+        m.copyInto(view);
+        return view;
+    }
+
+    private static Matrix[] outputs(int rows, int cols) {
+        return new Matrix[] {new Matrix(rows, cols), padded(rows, cols), transposed(rows, cols)};
+    }
+
+    private static void assertValues(Matrix expected, Matrix actual) {
+        assertEquals(expected.getRows(), actual.getRows());
+        assertEquals(expected.getCols(), actual.getCols());
+        for (int i = 0; i < expected.getRows(); i++) {
+            assertArrayEquals(expected.getRow(i), actual.getRow(i), 0.0f);
+        }
+    }
+
+    // Checks that the padding around a padded view is untouched
+    private static void assertPaddingKept(Matrix view) {
+        float[] buffer = view.getBuffer();
+        int count = 0;
+        for (float v : buffer) {
+            if (v == PADDING) {
+                count++;
+            }
+        }
+        assertEquals(buffer.length - view.numParams(), count);
+    }
+
+    /**
+     * Checks op, opInto and opInPlace of an element wise op against ref, with contiguous,
+     * padded and transposed inputs and outputs, and with the output the same matrix as an input
+     */
+    private static void checkElementwise(FloatOp ref, MatrixOp alloc, IntoOp into, MatrixOp inPlace) {
+        Matrix a = random(ROWS, COLS, 1);
+        Matrix b = random(ROWS, COLS, 2);
+
+        Matrix expected = new Matrix(ROWS, COLS);
+        for (int i = 0; i < ROWS; i++) {
+            for (int j = 0; j < COLS; j++) {
+                expected.set(i, j, ref.apply(a.get(i, j), b.get(i, j)));
+            }
+        }
+
+        Matrix aBefore = a.clone();
+        Matrix bBefore = b.clone();
+        assertValues(expected, alloc.apply(a, b));
+        assertValues(aBefore, a);
+        assertValues(bBefore, b);
+
+        Matrix[] aForms = {a, copyTo(a, padded(ROWS, COLS)), copyTo(a, transposed(ROWS, COLS))};
+        Matrix[] bForms = {b, copyTo(b, padded(ROWS, COLS)), copyTo(b, transposed(ROWS, COLS))};
+        for (Matrix aForm : aForms) {
+            for (Matrix bForm : bForms) {
+                assertValues(expected, alloc.apply(aForm, bForm));
+                for (Matrix out : outputs(ROWS, COLS)) {
+                    assertSame(out, into.apply(aForm, bForm, out));
+                    assertValues(expected, out);
+                }
+            }
+        }
+        assertPaddingKept(aForms[1]);
+        assertPaddingKept(bForms[1]);
+
+        Matrix[] outs = outputs(ROWS, COLS);
+        for (Matrix out : outs) {
+            into.apply(a, b, out);
+        }
+        assertPaddingKept(outs[1]);
+
+        // Writing over either input
+        for (Matrix form : new Matrix[] {new Matrix(ROWS, COLS), padded(ROWS, COLS), transposed(ROWS, COLS)}) {
+            copyTo(a, form);
+            assertValues(expected, into.apply(form, b, form));
+
+            copyTo(b, form);
+            assertValues(expected, into.apply(a, form, form));
+
+            copyTo(a, form);
+            assertSame(form, inPlace.apply(form, b));
+            assertValues(expected, form);
+        }
+
+        // Both inputs and the output the same matrix
+        Matrix self = a.clone();
+        into.apply(self, self, self);
+        for (int i = 0; i < ROWS; i++) {
+            for (int j = 0; j < COLS; j++) {
+                assertEquals(ref.apply(a.get(i, j), a.get(i, j)), self.get(i, j), 0.0f);
+            }
+        }
+    }
+
+    @Test
+    public void testMultiplyScalar() {
+        checkElementwise((x, y) -> x * 1.5f,
+                (a, b) -> a.multiply(1.5f), (a, b, out) -> a.multiplyInto(1.5f, out), (a, b) -> a.multiplyInPlace(1.5f));
+    }
+
+    @Test
+    public void testAddScalar() {
+        checkElementwise((x, y) -> x + 0.25f,
+                (a, b) -> a.add(0.25f), (a, b, out) -> a.addInto(0.25f, out), (a, b) -> a.addInPlace(0.25f));
+    }
+
+    @Test
+    public void testSubtractFromScalar() {
+        checkElementwise((x, y) -> 1 - x,
+                (a, b) -> a.subtractFrom(1), (a, b, out) -> a.subtractFromInto(1, out), (a, b) -> a.subtractFromInPlace(1));
+    }
+
+    @Test
+    public void testAdd() {
+        checkElementwise((x, y) -> x + y, Matrix::add, Matrix::addInto, Matrix::addInPlace);
+    }
+
+    @Test
+    public void testSubtract() {
+        checkElementwise((x, y) -> x - y, Matrix::subtract, Matrix::subtractInto, Matrix::subtractInPlace);
+    }
+
+    @Test
+    public void testPointwiseMultiply() {
+        checkElementwise((x, y) -> x * y, Matrix::pointwiseMultiply, Matrix::pointwiseMultiplyInto, Matrix::pointwiseMultiplyInPlace);
+    }
+
+    @Test
+    public void testCopyInto() {
+        checkElementwise((x, y) -> x, (a, b) -> a.clone(), (a, b, out) -> a.copyInto(out), (a, b) -> a.copyInto(a));
+    }
+
+    @Test
+    public void testDotInto() {
+        Matrix a = random(ROWS, 4, 3);
+        Matrix b = random(4, COLS, 4);
+        Matrix expected = a.dot(b);
+
+        Matrix[] aForms = {a, copyTo(a, padded(ROWS, 4)), copyTo(a, transposed(ROWS, 4))};
+        Matrix[] bForms = {b, copyTo(b, padded(4, COLS)), copyTo(b, transposed(4, COLS))};
+        for (Matrix aForm : aForms) {
+            for (Matrix bForm : bForms) {
+                Matrix[] outs = outputs(ROWS, COLS);
+                for (Matrix out : outs) {
+                    assertSame(out, aForm.dotInto(bForm, out));
+                    assertValues(expected, out);
+                }
+                assertPaddingKept(outs[1]);
+            }
+        }
+    }
+
+    @Test
+    public void testTransposeInto() {
+        Matrix a = random(ROWS, COLS, 5);
+        Matrix expected = a.transpose();
+        for (int i = 0; i < ROWS; i++) {
+            for (int j = 0; j < COLS; j++) {
+                assertEquals(a.get(i, j), expected.get(j, i), 0.0f);
+            }
+        }
+
+        Matrix[] outs = outputs(COLS, ROWS);
+        for (Matrix out : outs) {
+            assertSame(out, copyTo(a, padded(ROWS, COLS)).transposeInto(out));
+            assertValues(expected, out);
+        }
+        assertPaddingKept(outs[1]);
+    }
+
+    @Test
+    public void testConcatenateRowInto() {
+        Matrix a = random(ROWS, 2, 6);
+        Matrix b = random(ROWS, COLS - 2, 7);
+        Matrix expected = a.concatenateRow(b);
+        for (int i = 0; i < ROWS; i++) {
+            for (int j = 0; j < COLS; j++) {
+                assertEquals(j < 2 ? a.get(i, j) : b.get(i, j - 2), expected.get(i, j), 0.0f);
+            }
+        }
+
+        Matrix[] outs = outputs(ROWS, COLS);
+        for (Matrix out : outs) {
+            assertSame(out, a.concatenateRowInto(copyTo(b, transposed(ROWS, COLS - 2)), out));
+            assertValues(expected, out);
+        }
+        assertPaddingKept(outs[1]);
+    }
+
+    @Test
+    public void testOverlappingOutputsRejected() {
+        Matrix square = random(4, 4, 8);
+        Matrix other = random(4, 4, 9);
+        assertRejected(() -> square.dotInto(other, square));
+        assertRejected(() -> other.dotInto(square, square.transposeView()));
+        assertRejected(() -> square.transposeInto(square));
+
+        // Only part of the output is shared with an input
+        Matrix wide = new Matrix(4, 6);
+        Matrix left = wide.subMatrix(0, 0, 4, 3);
+        assertRejected(() -> left.concatenateRowInto(random(4, 3, 10), wide));
+    }
+
+    private static void assertRejected(Runnable op) {
+        try {
+            op.run();
+            fail("Expected the overlapping output to be rejected");
+        } catch (IllegalArgumentException expected) {
+            // Rejected by the overlap check
+        }
+    }
+}
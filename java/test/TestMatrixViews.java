@@ -0,0 +1,61 @@
+import network.math.Matrix;
+import network.math.MyRand;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestMatrixViews {
+
+    @Test
+    public void testViewsShareValues() {
+        Matrix m = new Matrix(new float[][] {{1, 2, 3}, {4, 5, 6}, {7, 8, 9}});
+
+        Matrix sub = m.subMatrix(1, 1, 2, 2);
+        assertEquals(5, sub.get(0, 0), 0.0f);
+        assertEquals(9, sub.get(1, 1), 0.0f);
+
+        sub.set(0, 1, 60);
+        assertEquals(60, m.get(1, 2), 0.0f);
+
+        Matrix row = m.rowView(2);
+        assertArrayEquals(new float[] {7, 8, 9}, row.getRow(0), 0.0f);
+
+        Matrix t = m.transposeView();
+        assertEquals(m.get(0, 2), t.get(2, 0), 0.0f);
+        t.set(2, 1, -1);
+        assertEquals(-1, m.get(1, 2), 0.0f);
+
+        // A clone of a view is a contiguous copy
+        Matrix copy = t.clone();
+        assertTrue(copy.isContiguous());
+        copy.set(0, 0, 100);
+        assertEquals(1, m.get(0, 0), 0.0f);
+    }
+
+    @Test
+    public void testChromosomeViewsMatchLoad() {
+        MyRand.initialize(3);
+        Matrix weights = Matrix.randomUniform(5, 4, 1.0f);
+        Matrix biases = Matrix.randomUniform(1, 4, 1.0f);
+
+        float[] arr = new float[3 + weights.numParams() + biases.numParams()];
+        Matrix.insertWeightsBiasesIntoArray(arr, 3, weights, biases);
+
+        Matrix weightsView = Matrix.weightsView(arr, 3, 5, 4);
+        Matrix biasesView = Matrix.biasesView(arr, 3, 5, 4);
+        for (int r = 0; r < 5; r++) {
+            assertArrayEquals(weights.getRow(r), weightsView.getRow(r), 0.0f);
+        }
+        assertArrayEquals(biases.getRow(0), biasesView.getRow(0), 0.0f);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testViewOutsideBuffer() {
+        Matrix.view(new float[10], 4, 2, 4, 4, 1);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testSubMatrixOutsideMatrix() {
+        new Matrix(3, 3).subMatrix(2, 0, 2, 3);
+    }
+}
@@ -0,0 +1,122 @@
+import network.math.Mutation;
+import network.math.NoiseTable;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import static org.junit.Assert.*;
+
+public class TestMutation {
+    private static final int COUNT = 1000000;
+
+    // Number of values in a that differ from b
+    private static int countChanged(float[] a, float[] b) {
+        int changed = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i]) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    private static float[] ones(int count) {
+        float[] values = new float[count];
+        Arrays.fill(values, 1);
+        return values;
+    }
+
+    @Test
+    public void testRateMatchesBinomial() {
+        float rate = 0.05f;
+        float[] values = ones(COUNT);
+        Mutation.mutate(values, 0, COUNT, rate, 0.5f, false, new SplittableRandom(1));
+
+        // The skip sampling should change each value independently with probability rate,
+        // so the number changed is binomial. 5 standard deviations is about 1100 values
+        double expected = COUNT * rate;
+        double sd = Math.sqrt(COUNT * rate * (1 - rate));
+        int changed = countChanged(values, ones(COUNT));
+        assertEquals(expected, changed, 5 * sd);
+
+        // The halves get about the same share, so nothing piles up at the start or end
+        int firstHalf = countChanged(Arrays.copyOf(values, COUNT / 2), ones(COUNT / 2));
+        assertEquals(changed / 2.0, firstHalf, 5 * Math.sqrt(changed / 4.0));
+
+        // Changes are uniform in [-size, size], so their mean is 0 and their mean square is size^2 / 3
+        double sum = 0;
+        double sumSq = 0;
+        for (float v : values) {
+            if (v != 1) {
+                float change = v - 1;
+                assertTrue(Math.abs(change) <= 0.5f);
+                sum += change;
+                sumSq += change * change;
+            }
+        }
+        assertEquals(0, sum / changed, 0.01);
+        assertEquals(0.25 / 3, sumSq / changed, 0.005);
+    }
+
+    @Test
+    public void testGaussianRateAndSize() {
+        NoiseTable table = new NoiseTable(3, 100000);
+        float rate = 0.05f;
+        float[] values = ones(COUNT);
+        Mutation.mutate(values, 0, COUNT, rate, 0.1f, false, table, new SplittableRandom(2));
+
+        double sd = Math.sqrt(COUNT * rate * (1 - rate));
+        int changed = countChanged(values, ones(COUNT));
+        assertEquals(COUNT * rate, changed, 5 * sd);
+
+        // Changes are size times a standard normal
+        double sumSq = 0;
+        for (float v : values) {
+            sumSq += (v - 1) * (v - 1);
+        }
+        assertEquals(0.1, Math.sqrt(sumSq / changed), 0.005);
+    }
+
+    @Test
+    public void testZeroRateChangesNothing() {
+        float[] values = ones(1000);
+        Mutation.mutate(values, 0, values.length, 0, 0.5f, false, new SplittableRandom(3));
+        Mutation.mutate(values, 0, values.length, -1, 0.5f, false, new SplittableRandom(3));
+        assertArrayEquals(ones(1000), values, 0.0f);
+    }
+
+    @Test
+    public void testFullRateChangesEverything() {
+        for (float rate : new float[] {1, 2}) {
+            float[] values = ones(10000);
+            Mutation.mutate(values, 0, values.length, rate, 0.5f, false, new SplittableRandom(4));
+            assertEquals(values.length, countChanged(values, ones(10000)));
+        }
+    }
+
+    @Test
+    public void testRangeAndKeepZeros() {
+        float[] values = ones(100);
+        for (int i = 20; i < 80; i += 2) {
+            values[i] = 0;
+        }
+        float[] before = values.clone();
+
+        Mutation.mutate(values, 20, 60, 1, 0.5f, true, new SplittableRandom(5));
+
+        for (int i = 0; i < values.length; i++) {
+            boolean inRange = i >= 20 && i < 80;
+            if (!inRange || before[i] == 0) {
+                assertEquals(before[i], values[i], 0.0f);
+            } else {
+                assertNotEquals(before[i], values[i], 0.0f);
+            }
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testRangePastEnd() {
+        Mutation.mutate(new float[10], 5, 6, 0.5f, 0.5f, false, new SplittableRandom(6));
+    }
+}
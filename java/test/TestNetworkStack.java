@@ -0,0 +1,99 @@
+import genetics.Population;
+import network.Network;
+import network.RecurrentState;
+import network.NetworkStack;
+import network.layers.DenseLayer;
+import network.layers.RecurrentLayer;
+import network.math.Matrix;
+import network.math.MyRand;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestNetworkStack {
+
+    private static Network makeNetwork() {
+        Network network = new Network();
+        network.addLayer(new RecurrentLayer(10, 16));
+        network.addLayer(new RecurrentLayer(16, 16));
+        network.addLayer(new DenseLayer(16, 8, "sigmoid"));
+        return network;
+    }
+
+    @Test
+    public void testMatchesSeparateNetworks() {
+        MyRand.initialize(11);
+        int members = 5;
+
+        Network[] networks = new Network[members];
+        for (int i = 0; i < members; i++) {
+            networks[i] = makeNetwork();
+        }
+        NetworkStack stack = new NetworkStack(networks);
+
+        // Several steps, so the recurrent state has to be kept per member
+        for (int step = 0; step < 4; step++) {
+            Matrix inputs = Matrix.randomUniform(members, 10, 1.0f);
+            Matrix stacked = stack.feedForward(inputs);
+
+            for (int i = 0; i < members; i++) {
+                Matrix single = networks[i].feedForward(new Matrix(new float[][] {inputs.getRow(i)}));
+                assertArrayEquals(single.getRow(0), stacked.getRow(i), 1e-6f);
+            }
+        }
+    }
+
+    @Test
+    public void testUpdateAfterMutate() {
+        MyRand.initialize(12);
+        Network[] networks = {makeNetwork(), makeNetwork()};
+        NetworkStack stack = new NetworkStack(networks);
+
+        networks[1].mutate(0.5f, 1.0f);
+        stack.update(1, networks[1]);
+
+        Matrix inputs = Matrix.randomUniform(2, 10, 1.0f);
+        Matrix stacked = stack.feedForward(inputs);
+        Matrix single = networks[1].feedForward(new Matrix(new float[][] {inputs.getRow(1)}));
+        assertArrayEquals(single.getRow(0), stacked.getRow(1), 1e-6f);
+    }
+
+    @Test
+    public void testPopulationAllActions() {
+        MyRand.initialize(13);
+        int members = 4;
+        Population population = new Population(members);
+
+        RecurrentState[] states = new RecurrentState[members];
+        for (int i = 0; i < members; i++) {
+            states[i] = population.getMember(i).newBrainState();
+        }
+
+        for (int step = 0; step < 3; step++) {
+            Matrix inputs = Matrix.randomUniform(members, 10, 1.0f);
+            Matrix all = population.getAllActions(inputs);
+
+            for (int i = 0; i < members; i++) {
+                Matrix single = population.getMember(i).useBrain(new Matrix(new float[][] {inputs.getRow(i)}), states[i]);
+                assertArrayEquals(single.getRow(0), all.getRow(i), 1e-6f);
+            }
+        }
+
+        // After a reset the first step is the same as from a fresh state
+        population.resetAllActions();
+        Matrix inputs = Matrix.randomUniform(members, 10, 1.0f);
+        Matrix all = population.getAllActions(inputs);
+        for (int i = 0; i < members; i++) {
+            Matrix single = population.getMember(i).useBrain(new Matrix(new float[][] {inputs.getRow(i)}),
+                    population.getMember(i).newBrainState());
+            assertArrayEquals(single.getRow(0), all.getRow(i), 1e-6f);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDifferentShapesRejected() {
+        Network other = new Network();
+        other.addLayer(new DenseLayer(10, 8, "sigmoid"));
+        new NetworkStack(new Network[] {makeNetwork(), other});
+    }
+}
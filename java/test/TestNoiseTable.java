@@ -0,0 +1,94 @@
+import network.Network;
+import network.layers.DenseLayer;
+import network.math.Matrix;
+import network.math.MyRand;
+import network.math.NoiseTable;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class TestNoiseTable {
+
+    @Test
+    public void testSameSeedSameTable() {
+        NoiseTable a = new NoiseTable(5, 1001);
+        NoiseTable b = new NoiseTable(5, 1001);
+        for (int i = 0; i < a.getSize(); i++) {
+            assertEquals(a.get(i), b.get(i), 0.0f);
+        }
+    }
+
+    @Test
+    public void testStandardNormal() {
+        NoiseTable table = new NoiseTable(1, 200000);
+        double sum = 0;
+        double sumSq = 0;
+        for (int i = 0; i < table.getSize(); i++) {
+            sum += table.get(i);
+            sumSq += table.get(i) * table.get(i);
+        }
+        assertEquals(0, sum / table.getSize(), 0.01);
+        assertEquals(1, sumSq / table.getSize(), 0.01);
+    }
+
+    @Test
+    public void testMappedMatchesGenerated() throws IOException {
+        NoiseTable table = new NoiseTable(9, 1000);
+        File file = File.createTempFile("noise", ".bin");
+        file.deleteOnExit();
+        table.save(file);
+
+        NoiseTable mapped = NoiseTable.map(file);
+        assertEquals(9, mapped.getSeed());
+        assertEquals(1000, mapped.getSize());
+        for (int i = 0; i < table.getSize(); i++) {
+            assertEquals(table.get(i), mapped.get(i), 0.0f);
+        }
+    }
+
+    @Test
+    public void testAddToReadsSliceInOrder() {
+        NoiseTable table = new NoiseTable(3, 100);
+        Matrix w = new Matrix(2, 3);
+        Matrix b = new Matrix(1, 3);
+
+        int end = table.addTo(b, table.addTo(w, 10, 0.5f), 0.5f);
+        assertEquals(19, end);
+
+        for (int i = 0; i < 6; i++) {
+            assertEquals(0.5f * table.get(10 + i), w.get(i / 3, i % 3), 0.0f);
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0.5f * table.get(16 + i), b.get(0, i), 0.0f);
+        }
+    }
+
+    @Test
+    public void testPerturbNetwork() {
+        MyRand.initialize(4);
+        NoiseTable table = new NoiseTable(3, 100);
+        Network network = new Network();
+        network.addLayer(new DenseLayer(4, 3, "relu"));
+        network.addLayer(new DenseLayer(3, 2, "sigmoid"));
+        float[] before = network.getChromosome();
+
+        network.perturb(table, 10, 0.5f);
+        float[] after = network.getChromosome();
+        for (int i = 0; i < before.length; i++) {
+            assertEquals(before[i] + 0.5f * table.get(10 + i), after[i], 0.0f);
+        }
+
+        // The same offset with the opposite sign undoes it
+        network.perturb(table, 10, -0.5f);
+        assertArrayEquals(before, network.getChromosome(), 1e-6f);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testSliceOutsideTable() {
+        NoiseTable table = new NoiseTable(3, 10);
+        table.addTo(new Matrix(3, 3), 5, 1.0f);
+    }
+}
@@ -0,0 +1,81 @@
+import network.Network;
+import network.layers.DenseLayer;
+import network.layers.RecurrentLayer;
+import network.math.Matrix;
+import network.math.MyRand;
+import network.math.OffHeapMatrix;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class TestOffHeapMatrix {
+
+    @Test
+    public void testCopyRoundTrip() {
+        MyRand.initialize(6);
+        Matrix m = Matrix.randomUniform(4, 7, 1.0f);
+
+        OffHeapMatrix offHeap = OffHeapMatrix.allocate(4, 7);
+        offHeap.copyFrom(m);
+        assertEquals(m.get(3, 6), offHeap.get(3, 6), 0.0f);
+
+        // Strided source and destination
+        OffHeapMatrix transposed = OffHeapMatrix.allocate(7, 4);
+        transposed.copyFrom(m.transposeView());
+        Matrix back = transposed.toMatrix();
+        for (int r = 0; r < 4; r++) {
+            for (int c = 0; c < 7; c++) {
+                assertEquals(m.get(r, c), back.get(c, r), 0.0f);
+            }
+        }
+    }
+
+    @Test
+    public void testMappedFileIsLittleEndianRowMajor() throws IOException {
+        File file = File.createTempFile("matrix", ".f32");
+        file.deleteOnExit();
+
+        OffHeapMatrix mapped = OffHeapMatrix.map(file, 2, 3, true);
+        mapped.set(1, 2, 1.5f);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            assertEquals(24, raf.length());
+            raf.seek(4 * 5);
+            assertEquals(1.5f, Float.intBitsToFloat(Integer.reverseBytes(raf.readInt())), 0.0f);
+        } finally {
+            raf.close();
+        }
+
+        assertEquals(1.5f, OffHeapMatrix.map(file, 2, 3, false).get(1, 2), 0.0f);
+    }
+
+    @Test
+    public void testPopulationChromosomes() {
+        MyRand.initialize(8);
+        Network template = new Network();
+        template.addLayer(new RecurrentLayer(10, 16));
+        template.addLayer(new DenseLayer(16, 8, "sigmoid"));
+
+        int members = 3;
+        OffHeapMatrix population = OffHeapMatrix.allocate(members, template.numParams());
+        Network[] networks = new Network[members];
+        for (int i = 0; i < members; i++) {
+            networks[i] = template.clone();
+            networks[i].mutate(1.0f, 1.0f);
+            population.setRow(i, networks[i].getChromosome(), 0);
+        }
+
+        Matrix input = Matrix.randomUniform(1, 10, 1.0f);
+        float[] genes = new float[template.numParams()];
+        for (int i = 0; i < members; i++) {
+            population.getRow(i, genes, 0);
+            Network restored = template.fromChromosome(genes.clone());
+            assertArrayEquals(networks[i].feedForward(input).getRow(0), restored.feedForward(input).getRow(0), 0.0f);
+        }
+    }
+}
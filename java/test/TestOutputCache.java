@@ -0,0 +1,127 @@
+import network.Network;
+import network.OutputCache;
+import network.layers.DenseLayer;
+import network.layers.RecurrentLayer;
+import network.math.Matrix;
+import network.math.MyRand;
+import org.junit.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.Assert.*;
+
+public class TestOutputCache {
+
+    private static Network makeNetwork() {
+        Network network = new Network();
+        network.addLayer(new DenseLayer(4, 8, "relu"));
+        network.addLayer(new DenseLayer(8, 3, "sigmoid"));
+        return network;
+    }
+
+    private static Matrix toRow(int[] observation) {
+        Matrix row = new Matrix(1, observation.length);
+        for (int i = 0; i < observation.length; i++) {
+            row.set(0, i, observation[i]);
+        }
+        return row;
+    }
+
+    @Test
+    public void testHitsMatchNetwork() {
+        MyRand.initialize(71);
+        Network network = makeNetwork();
+        Network reference = network.clone();
+        OutputCache cache = new OutputCache(network, 100);
+
+        int[][] observations = {{1, 2, 3, 4}, {0, 0, 1, 6}, {1, 2, 3, 4}, {5, 5, 5, 5}, {0, 0, 1, 6}, {1, 2, 3, 4}};
+        for (int[] observation : observations) {
+            float[] expected = reference.feedForward(toRow(observation)).getRow(0);
+            assertArrayEquals(expected, cache.feedForward(observation).getRow(0), 0.0f);
+        }
+
+        assertEquals(3, cache.getMisses());
+        assertEquals(3, cache.getHits());
+        assertEquals(0.5f, cache.getHitRate(), 0.0f);
+        assertEquals(3, cache.size());
+
+        // Matrix inputs with the same values are their own entries, with the same outputs
+        Matrix input = toRow(observations[0]);
+        assertArrayEquals(cache.feedForward(observations[0]).getRow(0), cache.feedForward(input).getRow(0), 0.0f);
+        assertArrayEquals(cache.feedForward(observations[0]).getRow(0), cache.feedForward(input.clone()).getRow(0), 0.0f);
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsDropped() {
+        MyRand.initialize(72);
+        OutputCache cache = new OutputCache(makeNetwork(), 2);
+
+        cache.feedForward(new int[] {1, 0, 0, 0});
+        cache.feedForward(new int[] {2, 0, 0, 0});
+        cache.feedForward(new int[] {1, 0, 0, 0});
+        cache.feedForward(new int[] {3, 0, 0, 0});
+        assertEquals(2, cache.size());
+
+        // 2 was used least recently, so it went
+        cache.feedForward(new int[] {1, 0, 0, 0});
+        assertEquals(2, cache.getHits());
+        cache.feedForward(new int[] {2, 0, 0, 0});
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void testMutateInvalidates() {
+        MyRand.initialize(73);
+        Network network = makeNetwork();
+        OutputCache cache = new OutputCache(network, 10);
+        int[] observation = {3, 1, 4, 1};
+
+        float[] before = cache.feedForward(observation).getRow(0);
+        network.mutate(1.0f, 0.5f, new SplittableRandom(5));
+        float[] after = cache.feedForward(observation).getRow(0);
+
+        assertEquals(1, cache.getInvalidations());
+        assertEquals(0, cache.getHits());
+        assertNotEquals(before[0], after[0], 0.0f);
+        assertArrayEquals(network.feedForward(toRow(observation)).getRow(0), after, 0.0f);
+
+        // Layer level changes count too
+        network.getLayer(1).mutate(1.0f, 0.5f);
+        cache.feedForward(observation);
+        assertEquals(2, cache.getInvalidations());
+    }
+
+    @Test
+    public void testFastMathInvalidates() {
+        MyRand.initialize(74);
+        Network network = makeNetwork();
+        OutputCache cache = new OutputCache(network, 10);
+        int[] observation = {2, 7, 1, 8};
+
+        cache.feedForward(observation);
+        network.setFastMath(true);
+        float[] fast = cache.feedForward(observation).getRow(0);
+
+        assertEquals(1, cache.getInvalidations());
+        assertArrayEquals(network.feedForward(toRow(observation)).getRow(0), fast, 0.0f);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRejectsRecurrentLayerAddedLater() {
+        MyRand.initialize(75);
+        Network network = makeNetwork();
+        OutputCache cache = new OutputCache(network, 10);
+        cache.feedForward(new int[] {1, 1, 1, 1});
+
+        network.addLayer(new RecurrentLayer(3, 3));
+        cache.feedForward(new int[] {1, 1, 1, 1});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsRecurrentNetworks() {
+        Network network = new Network();
+        network.addLayer(new RecurrentLayer(4, 4));
+        new OutputCache(network, 10);
+    }
+}
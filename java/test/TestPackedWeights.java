@@ -0,0 +1,67 @@
+import network.Network;
+import network.layers.DenseLayer;
+import network.layers.RecurrentLayer;
+import network.math.Activations;
+import network.math.DenseKernel;
+import network.math.Matrix;
+import network.math.MyRand;
+import network.math.PackedWeights;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestPackedWeights {
+
+    @Test
+    public void testPackedMatchesRowMajor() {
+        MyRand.initialize(2);
+        Matrix input = Matrix.randomUniform(3, 10, 1.0f);
+        Matrix weights = Matrix.randomUniform(10, 7, 1.0f);
+        Matrix biases = Matrix.randomUniform(1, 7, 1.0f);
+
+        Matrix expected = DenseReference.feedForward(input, weights, biases, Activations.SIGMOID);
+        Matrix actual = DenseKernel.feedForward(input, new PackedWeights(weights, biases), Activations.SIGMOID, new Matrix(3, 7));
+
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(expected.getRow(i), actual.getRow(i), 1e-6f);
+        }
+    }
+
+    @Test
+    public void testRepackedAfterMutate() {
+        MyRand.initialize(4);
+        Network network = new Network();
+        network.addLayer(new DenseLayer(6, 5, "relu"));
+        network.addLayer(new DenseLayer(5, 3, "sigmoid"));
+
+        Matrix input = Matrix.randomUniform(1, 6, 1.0f);
+
+        // Packs the weights
+        network.feedForward(input);
+
+        network.mutate(0.5f, 1.0f);
+        float[] afterMutate = network.feedForward(input).getRow(0);
+
+        // A clone has never packed its weights, so it sees the mutated ones
+        float[] fresh = network.clone().feedForward(input).getRow(0);
+        assertArrayEquals(fresh, afterMutate, 0.0f);
+    }
+
+    @Test
+    public void testParametersChangedRepacks() {
+        MyRand.initialize(5);
+        RecurrentLayer layer = new RecurrentLayer(4, 3);
+        Matrix input = Matrix.randomUniform(1, 4, 1.0f);
+
+        Matrix hidden = layer.feedForward(input).clone();
+
+        // Change the weights from outside the layer
+        layer.getWeights().addInPlace(0.25f);
+        layer.parametersChanged();
+
+        Matrix combined = input.concatenateRow(hidden);
+        Matrix expected = DenseReference.feedForward(combined, layer.getWeights(), layer.getBiases(), Activations.TANH);
+
+        assertArrayEquals(expected.getRow(0), layer.feedForward(input).getRow(0), 1e-6f);
+    }
+}
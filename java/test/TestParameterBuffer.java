@@ -0,0 +1,154 @@
+import network.Network;
+import network.layers.DenseLayer;
+import network.layers.LSTMLayer;
+import network.layers.Layer;
+import network.layers.RecurrentLayer;
+import network.math.Matrix;
+import network.math.MyRand;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.SplittableRandom;
+
+import static org.junit.Assert.*;
+
+public class TestParameterBuffer {
+
+    private static Network makeNetwork() {
+        Network network = new Network();
+        network.addLayer(new RecurrentLayer(3, 4));
+        network.addLayer(new LSTMLayer(4, 3));
+        network.addLayer(new DenseLayer(3, 2, "tanh"));
+        return network;
+    }
+
+    @Test
+    public void testLayersAreViewsIntoBuffer() {
+        MyRand.initialize(5);
+        Network network = makeNetwork();
+
+        // Moving the layers into the buffer keeps every value where the chromosome puts it
+        float[] buffer = network.getParameterBuffer();
+        assertEquals(network.numParams(), buffer.length);
+
+        int index = 0;
+        for (Layer l : network.getLayers()) {
+            float[] expected = new float[l.numParams()];
+            l.insertIntoArray(expected, 0);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], buffer[index + i], 0.0f);
+            }
+            index += l.numParams();
+        }
+
+        // Writing to a layer writes to the buffer, and the other way round
+        Layer dense = network.getLayer(2);
+        dense.getBiases().set(0, 1, 42);
+        assertEquals(42, buffer[buffer.length - 1], 0.0f);
+
+        buffer[buffer.length - 1] = -7;
+        assertEquals(-7, dense.getBiases().get(0, 1), 0.0f);
+
+        // getChromosome is a copy
+        float[] chromosome = network.getChromosome();
+        chromosome[0] += 1;
+        assertNotEquals(chromosome[0], buffer[0], 0.0f);
+    }
+
+    @Test
+    public void testMutateChangesOutput() {
+        MyRand.initialize(6);
+        Network network = makeNetwork();
+        Matrix input = Matrix.randomUniform(1, 3, 1);
+
+        float[] before = network.clone().feedForward(input).getRow(0);
+
+        network.mutate(1.0f, 0.5f, new SplittableRandom(1));
+        float[] after = network.clone().feedForward(input).getRow(0);
+
+        // The packed copies were rebuilt after mutating the buffer
+        assertArrayEquals(after, network.feedForward(input).getRow(0), 0.0f);
+        assertNotEquals(before[0], after[0], 0.0f);
+    }
+
+    @Test
+    public void testLayerMutatesItsRangeOfTheBuffer() {
+        MyRand.initialize(9);
+        Network network = makeNetwork();
+        network.getLayer(1).getWeights().set(0, 0, 0);
+        network.setKeepPruned(true);
+
+        float[] buffer = network.getParameterBuffer();
+        float[] before = buffer.clone();
+        int start = network.getLayer(0).numParams();
+        int end = start + network.getLayer(1).numParams();
+
+        network.getLayer(1).mutate(1.0f, 0.5f, new SplittableRandom(2));
+
+        // Only the layer's own values change, and the pruned weight stays at 0
+        for (int i = 0; i < buffer.length; i++) {
+            if (i < start || i >= end) {
+                assertEquals(before[i], buffer[i], 0.0f);
+            } else if (before[i] != 0) {
+                assertNotEquals(before[i], buffer[i], 0.0f);
+            }
+        }
+        assertEquals(0, network.getLayer(1).getWeights().get(0, 0), 0.0f);
+
+        // A layer on its own mutates too
+        DenseLayer layer = new DenseLayer(3, 2, "tanh");
+        float[] weights = layer.getWeights().getRow(0);
+        layer.mutate(1.0f, 0.5f, new SplittableRandom(3));
+        assertNotEquals(weights[0], layer.getWeights().get(0, 0), 0.0f);
+    }
+
+    @Test
+    public void testCrossoverAndCloneAreIndependent() {
+        MyRand.initialize(7);
+        Network a = makeNetwork();
+        Network b = makeNetwork();
+
+        Network child = a.crossover(b, new SplittableRandom(3));
+        float[] genes = child.getParameterBuffer();
+        float[] aGenes = a.getParameterBuffer();
+        float[] bGenes = b.getParameterBuffer();
+
+        // Every gene comes from one parent, split at a single point
+        int swap = 0;
+        while (swap < genes.length && genes[swap] == aGenes[swap]) {
+            swap++;
+        }
+        for (int i = swap; i < genes.length; i++) {
+            assertEquals(bGenes[i], genes[i], 0.0f);
+        }
+
+        // Changing a clone leaves the original alone
+        Network clone = child.clone();
+        float original = genes[0];
+        clone.getParameterBuffer()[0] += 1;
+        clone.parametersChanged();
+        assertEquals(original, genes[0], 0.0f);
+        assertEquals(original, child.getLayer(0).getWeights().get(0, 0), 0.0f);
+    }
+
+    @Test
+    public void testSerializationKeepsOneBuffer() throws IOException, ClassNotFoundException {
+        MyRand.initialize(8);
+        Network network = makeNetwork();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(network);
+        out.close();
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Network loaded = (Network) in.readObject();
+        in.close();
+
+        assertArrayEquals(network.getChromosome(), loaded.getChromosome(), 0.0f);
+
+        // The loaded layers still write through to the loaded buffer
+        loaded.getParameterBuffer()[0] = 100;
+        assertEquals(100, loaded.getLayer(0).getWeights().get(0, 0), 0.0f);
+    }
+}
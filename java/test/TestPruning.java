@@ -0,0 +1,107 @@
+import network.CompiledNetwork;
+import network.Network;
+import network.layers.DenseLayer;
+import network.layers.LSTMLayer;
+import network.layers.RecurrentLayer;
+import network.math.Activations;
+import network.math.DenseKernel;
+import network.math.Matrix;
+import network.math.MyRand;
+import network.math.SparseWeights;
+import org.junit.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.Assert.*;
+
+public class TestPruning {
+
+    @Test
+    public void testSparseKernelMatchesDense() {
+        MyRand.initialize(61);
+        Matrix weights = Matrix.randomUniform(15, 6, 1.0f);
+        Matrix biases = Matrix.randomUniform(1, 6, 0.5f);
+        for (int i = 0; i < 15; i++) {
+            for (int j = 0; j < 6; j++) {
+                if (Math.abs(weights.get(i, j)) < 0.8f) {
+                    weights.set(i, j, 0);
+                }
+            }
+        }
+        Matrix input = Matrix.randomUniform(3, 15, 1.0f);
+
+        SparseWeights sparse = new SparseWeights(weights, biases);
+        assertEquals(Math.round(SparseWeights.density(weights) * 90), sparse.getNonZero());
+
+        Matrix expected = DenseReference.feedForward(input, weights, biases, Activations.TANH);
+        Matrix actual = DenseKernel.feedForward(input, sparse, Activations.TANH, new Matrix(3, 6));
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(expected.getRow(i), actual.getRow(i), 1e-5f);
+        }
+    }
+
+    @Test
+    public void testPrunedLayersSwitchKernel() {
+        MyRand.initialize(62);
+        Network network = new Network();
+        RecurrentLayer recurrent = new RecurrentLayer(10, 16);
+        DenseLayer dense = new DenseLayer(16, 8, "sigmoid");
+        network.addLayer(recurrent);
+        network.addLayer(new LSTMLayer(16, 16));
+        network.addLayer(dense);
+
+        Matrix input = Matrix.randomUniform(1, 10, 1.0f);
+        network.clone().feedForward(input);
+        assertFalse(dense.isSparse());
+        assertFalse(recurrent.isSparse());
+
+        int pruned = network.prune(0.4f);
+        assertTrue(pruned > 0);
+        assertTrue(dense.getDensity() < SparseWeights.DENSITY_CUTOFF);
+        assertTrue(dense.isSparse());
+        assertTrue(recurrent.isSparse());
+
+        // Sparse layers, the compiled plan and a clone all agree
+        CompiledNetwork compiled = network.compile();
+        Network clone = network.clone();
+        for (int step = 0; step < 3; step++) {
+            float[] expected = clone.feedForward(input).getRow(0);
+            assertArrayEquals(expected, network.feedForward(input).getRow(0), 1e-5f);
+            assertArrayEquals(expected, compiled.feedForward(input).getRow(0), 1e-5f);
+        }
+
+        // Mutating the zeros back in switches back to the packed kernel
+        network.mutate(1.0f, 0.5f, new SplittableRandom(2));
+        assertFalse(dense.isSparse());
+    }
+
+    @Test
+    public void testKeepPrunedSurvivesMutationAndCrossover() {
+        MyRand.initialize(63);
+        Network a = new Network();
+        a.addLayer(new DenseLayer(12, 10, "tanh"));
+        Network b = a.clone();
+
+        a.setKeepPruned(true);
+        a.prune(0.4f);
+        b.prune(0.4f);
+        float[] before = a.getChromosome();
+
+        Network child = a.crossover(b, new SplittableRandom(4));
+        assertTrue(child.isKeepPruned());
+
+        for (int generation = 0; generation < 10; generation++) {
+            a.mutate(0.5f, 0.5f, new SplittableRandom(generation));
+            child.mutate(0.5f, 0.5f, new SplittableRandom(generation));
+        }
+
+        float[] after = a.getChromosome();
+        float[] childGenes = child.getChromosome();
+        for (int i = 0; i < before.length; i++) {
+            if (before[i] == 0) {
+                assertEquals(0, after[i], 0.0f);
+                assertEquals(0, childGenes[i], 0.0f);
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import network.CompiledNetwork;
+import network.Network;
+import network.RecurrentState;
+import network.layers.DenseLayer;
+import network.layers.LSTMLayer;
+import network.layers.RecurrentLayer;
+import network.math.Activations;
+import network.math.DenseKernel;
+import network.math.Matrix;
+import network.math.MyRand;
+import network.math.QuantizedWeights;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestQuantizedNetwork {
+
+    @Test
+    public void testWeightsWithinHalfAStep() {
+        MyRand.initialize(51);
+        Matrix weights = Matrix.randomUniform(12, 5, 2.0f);
+        Matrix biases = Matrix.randomUniform(1, 5, 0.5f);
+        weights.set(3, 2, 0);
+        for (int k = 0; k < 12; k++) {
+            weights.set(k, 4, 0);
+        }
+
+        QuantizedWeights quantized = new QuantizedWeights(weights, biases);
+        Matrix restored = quantized.dequantize();
+
+        for (int j = 0; j < 5; j++) {
+            float max = 0;
+            for (int k = 0; k < 12; k++) {
+                max = Math.max(max, Math.abs(weights.get(k, j)));
+            }
+            for (int k = 0; k < 12; k++) {
+                assertEquals(weights.get(k, j), restored.get(k, j), max / 127 / 2 + 1e-6f);
+            }
+        }
+        assertEquals(0, restored.get(3, 2), 0.0f);
+        assertEquals(0, restored.get(7, 4), 0.0f);
+    }
+
+    @Test
+    public void testKernelMatchesFloat() {
+        MyRand.initialize(52);
+        Matrix weights = Matrix.randomUniform(20, 8, 0.5f);
+        Matrix biases = Matrix.randomUniform(1, 8, 0.5f);
+        Matrix input = Matrix.randomUniform(4, 20, 1.0f);
+
+        // A zero row gives the biases
+        for (int k = 0; k < 20; k++) {
+            input.set(2, k, 0);
+        }
+
+        Matrix expected = DenseReference.feedForward(input, weights, biases, Activations.NONE);
+        Matrix actual = DenseKernel.feedForward(input, new QuantizedWeights(weights, biases), Activations.NONE, new byte[20], new Matrix(4, 8));
+
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(expected.getRow(i), actual.getRow(i), 0.05f);
+        }
+        assertArrayEquals(biases.getRow(0), actual.getRow(2), 1e-6f);
+    }
+
+    @Test
+    public void testMatchesCompiledNetwork() {
+        MyRand.initialize(53);
+        Network network = new Network();
+        network.addLayer(new RecurrentLayer(10, 16));
+        network.addLayer(new LSTMLayer(16, 12));
+        network.addLayer(new DenseLayer(12, 8, "sigmoid"));
+
+        CompiledNetwork compiled = network.compile();
+        CompiledNetwork quantized = network.quantize();
+        assertFalse(compiled.isQuantized());
+        assertTrue(quantized.isQuantized());
+
+        RecurrentState compiledState = compiled.newState(3);
+        RecurrentState quantizedState = quantized.newState(3);
+
+        // The rounding error stays small through the recurrent state
+        for (int step = 0; step < 20; step++) {
+            Matrix input = Matrix.randomUniform(3, 10, 1.0f);
+            Matrix expected = compiled.feedForward(input, compiledState);
+            Matrix actual = quantized.feedForward(input, quantizedState);
+            for (int i = 0; i < 3; i++) {
+                assertArrayEquals(expected.getRow(i), actual.getRow(i), 0.02f);
+            }
+        }
+
+        // Copies carry the state over
+        RecurrentState copy = quantizedState.copy();
+        Matrix input = Matrix.randomUniform(3, 10, 1.0f);
+        float[] fromCopy = quantized.feedForward(input, copy).getRow(1);
+        assertArrayEquals(quantized.feedForward(input, quantizedState).getRow(1), fromCopy, 0.0f);
+    }
+}
@@ -0,0 +1,77 @@
+import network.math.Matrix;
+import network.math.MyRand;
+import network.math.RandomStreams;
+import org.junit.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.Assert.*;
+
+public class TestRandomStreams {
+
+    @Test
+    public void testSameKeysSameStream() {
+        RandomStreams.initialize(7);
+        long a = RandomStreams.stream(RandomStreams.INDIVIDUAL, 3, 12).nextLong();
+        long b = RandomStreams.stream(RandomStreams.INDIVIDUAL, 3, 12).nextLong();
+        long c = RandomStreams.stream(RandomStreams.INDIVIDUAL, 3, 13).nextLong();
+        long d = RandomStreams.stream(RandomStreams.EPISODE, 3, 12).nextLong();
+
+        assertEquals(a, b);
+        assertNotEquals(a, c);
+        assertNotEquals(a, d);
+
+        RandomStreams.initialize(8);
+        assertNotEquals(a, RandomStreams.stream(RandomStreams.INDIVIDUAL, 3, 12).nextLong());
+    }
+
+    @Test
+    public void testStreamIgnoresOtherThreads() throws InterruptedException {
+        RandomStreams.initialize(7);
+        Matrix expected = Matrix.randomUniform(4, 4, 1.0f, RandomStreams.stream(RandomStreams.INDIVIDUAL, 0, 0));
+
+        // Draw on another thread first, which must not change the keyed stream
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 1000; i++) {
+                    MyRand.randFloat();
+                }
+            }
+        });
+        other.start();
+        other.join();
+        MyRand.randInt(10);
+
+        Matrix actual = Matrix.randomUniform(4, 4, 1.0f, RandomStreams.stream(RandomStreams.INDIVIDUAL, 0, 0));
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(expected.getRow(i), actual.getRow(i), 0.0f);
+        }
+    }
+
+    @Test
+    public void testInitializeRestartsCurrentStream() {
+        MyRand.initialize(3);
+        float first = MyRand.randFloat();
+        MyRand.initialize(3);
+        assertEquals(first, MyRand.randFloat(), 0.0f);
+    }
+
+    @Test
+    public void testFloatAndGaussianRange() {
+        SplittableRandom random = RandomStreams.stream(1);
+        double sum = 0;
+        double sumSq = 0;
+        int n = 100000;
+        for (int i = 0; i < n; i++) {
+            float f = RandomStreams.nextFloat(random);
+            assertTrue(f >= 0 && f < 1);
+
+            float g = RandomStreams.nextGaussian(random);
+            sum += g;
+            sumSq += g * g;
+        }
+        assertEquals(0, sum / n, 0.02);
+        assertEquals(1, sumSq / n, 0.02);
+    }
+}
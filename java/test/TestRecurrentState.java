@@ -0,0 +1,138 @@
+import network.CompiledNetwork;
+import network.Network;
+import network.RecurrentState;
+import network.layers.DenseLayer;
+import network.layers.LSTMLayer;
+import network.layers.RecurrentLayer;
+import network.math.Matrix;
+import network.math.MyRand;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestRecurrentState {
+
+    private static Network makeNetwork() {
+        Network network = new Network();
+        network.addLayer(new RecurrentLayer(6, 8));
+        network.addLayer(new LSTMLayer(8, 8));
+        network.addLayer(new DenseLayer(8, 3, "sigmoid"));
+        return network;
+    }
+
+    @Test
+    public void testStatesDoNotInterleave() {
+        MyRand.initialize(31);
+        Network shared = makeNetwork();
+        Network a = shared.clone();
+        Network b = shared.clone();
+
+        RecurrentState stateA = shared.newState();
+        RecurrentState stateB = shared.newState();
+
+        for (int step = 0; step < 4; step++) {
+            Matrix inputA = Matrix.randomUniform(1, 6, 1.0f);
+            Matrix inputB = Matrix.randomUniform(1, 6, 1.0f);
+
+            assertArrayEquals(a.feedForward(inputA).getRow(0), shared.feedForward(inputA, stateA).getRow(0), 0.0f);
+            assertArrayEquals(b.feedForward(inputB).getRow(0), shared.feedForward(inputB, stateB).getRow(0), 0.0f);
+        }
+    }
+
+    @Test
+    public void testCopyAndReset() {
+        MyRand.initialize(32);
+        Network network = makeNetwork();
+        RecurrentState state = network.newState();
+        Matrix input = Matrix.randomUniform(1, 6, 1.0f);
+
+        float[] first = network.feedForward(input, state).getRow(0);
+        network.feedForward(input, state);
+
+        // A copy continues from the same point, independently
+        RecurrentState copy = state.copy();
+        float[] third = network.feedForward(input, state).getRow(0);
+        assertArrayEquals(third, network.feedForward(input, copy).getRow(0), 0.0f);
+
+        state.reset();
+        assertArrayEquals(first, network.feedForward(input, state).getRow(0), 0.0f);
+    }
+
+    @Test
+    public void testThreadsShareOneNetwork() throws InterruptedException {
+        MyRand.initialize(33);
+        final Network shared = makeNetwork();
+        final Matrix[] inputs = new Matrix[20];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = Matrix.randomUniform(1, 6, 1.0f);
+        }
+
+        // Expected outputs of the sequence, run alone
+        RecurrentState alone = shared.newState();
+        final float[][] expected = new float[inputs.length][];
+        for (int i = 0; i < inputs.length; i++) {
+            expected[i] = shared.feedForward(inputs[i], alone).getRow(0);
+        }
+
+        final boolean[] ok = new boolean[4];
+        Thread[] threads = new Thread[ok.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    RecurrentState state = shared.newState();
+                    boolean same = true;
+                    for (int repeat = 0; repeat < 200; repeat++) {
+                        state.reset();
+                        for (int i = 0; i < inputs.length; i++) {
+                            float[] out = shared.feedForward(inputs[i], state).getRow(0);
+                            for (int j = 0; j < out.length; j++) {
+                                same &= out[j] == expected[i][j];
+                            }
+                        }
+                    }
+                    ok[id] = same;
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (boolean result : ok) {
+            assertTrue(result);
+        }
+    }
+
+    @Test
+    public void testStateFromOtherNetworkRejected() {
+        MyRand.initialize(34);
+        Network network = makeNetwork();
+        CompiledNetwork compiled = network.compile();
+        CompiledNetwork quantized = network.quantize();
+        Matrix input = Matrix.randomUniform(1, 6, 1.0f);
+
+        RecurrentState networkState = network.newState();
+        RecurrentState compiledState = compiled.newState();
+
+        assertRejected(() -> compiled.feedForward(input, networkState));
+        assertRejected(() -> network.feedForward(input, compiledState));
+        assertRejected(() -> quantized.feedForward(input, compiledState));
+        assertRejected(() -> network.clone().feedForward(input, networkState));
+        assertRejected(() -> network.backward(new Matrix(1, 3), compiledState));
+
+        // A copy belongs to the same network
+        network.feedForward(input, networkState.copy());
+        compiled.feedForward(input, compiledState.copy());
+    }
+
+    private static void assertRejected(Runnable op) {
+        try {
+            op.run();
+            fail("Expected the state to be rejected");
+        } catch (IllegalArgumentException expected) {
+            assertEquals("State was made by a different network", expected.getMessage());
+        }
+    }
+}
@@ -0,0 +1,194 @@
+import network.Network;
+import network.RecurrentState;
+import network.layers.DenseLayer;
+import network.layers.LSTMLayer;
+import network.layers.Layer;
+import network.layers.RecurrentLayer;
+import network.math.Matrix;
+import network.math.MyRand;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestTruncatedBackprop {
+    private static final int STEPS = 4;
+
+    private static Network makeNetwork(Layer recurrent, int outputs) {
+        Network network = new Network();
+        network.addLayer(recurrent);
+        network.addLayer(new DenseLayer(outputs, 2, "none"));
+        return network;
+    }
+
+    // Runs the sequence from a zeroed state and returns half the squared error of the last output,
+    // or of every output if everyStep is set
+    private static double loss(Network network, Matrix[] inputs, Matrix target, boolean everyStep) {
+        RecurrentState state = network.newState();
+        double sum = 0;
+        for (int t = 0; t < inputs.length; t++) {
+            Matrix output = network.feedForward(inputs[t], state);
+            if (everyStep || t == inputs.length - 1) {
+                for (int r = 0; r < output.getRows(); r++) {
+                    for (int c = 0; c < output.getCols(); c++) {
+                        double e = output.get(r, c) - target.get(r, c);
+                        sum += 0.5 * e * e;
+                    }
+                }
+            }
+        }
+        return sum;
+    }
+
+    // Backpropagates the loss of the sequence, with the given window
+    private static float[] gradients(Network network, Matrix[] inputs, Matrix target, int window, boolean everyStep) {
+        network.setBackpropWindow(window);
+        RecurrentState state = network.newState();
+
+        // By age, so the last step comes first
+        Matrix[] outputGradients = new Matrix[inputs.length];
+        for (int t = 0; t < inputs.length; t++) {
+            Matrix output = network.feedForward(inputs[t], state);
+            Matrix outputGradient = new Matrix(output.getRows(), output.getCols());
+            for (int r = 0; r < output.getRows(); r++) {
+                for (int c = 0; c < output.getCols(); c++) {
+                    outputGradient.set(r, c, output.get(r, c) - target.get(r, c));
+                }
+            }
+            outputGradients[inputs.length - 1 - t] = outputGradient;
+        }
+
+        network.zeroGradients();
+        if (everyStep) {
+            network.backward(outputGradients, state);
+        } else {
+            network.backward(outputGradients[0], state);
+        }
+        return network.getGradients().clone();
+    }
+
+    private static void checkFiniteDifferences(Network network, boolean everyStep) {
+        int inputs = network.getLayer(0).getInputSize();
+        int outputs = network.getLayer(network.getLayers().size() - 1).getOutputSize();
+        Matrix[] sequence = new Matrix[STEPS];
+        for (int t = 0; t < STEPS; t++) {
+            sequence[t] = Matrix.randomUniform(3, inputs, 1.0f);
+        }
+        Matrix target = Matrix.randomUniform(3, outputs, 1.0f);
+
+        // A window as long as the sequence is full backpropagation through time
+        float[] gradients = gradients(network, sequence, target, STEPS, everyStep);
+
+        float[] params = network.getParameterBuffer();
+        float eps = 1e-2f;
+        for (int i = 0; i < params.length; i++) {
+            float original = params[i];
+            params[i] = original + eps;
+            network.parametersChanged();
+            double up = loss(network, sequence, target, everyStep);
+            params[i] = original - eps;
+            network.parametersChanged();
+            double down = loss(network, sequence, target, everyStep);
+            params[i] = original;
+            network.parametersChanged();
+
+            assertEquals("parameter " + i, (up - down) / (2 * eps), gradients[i], 2e-3);
+        }
+
+        // A shorter window leaves out the earlier steps
+        float[] truncated = gradients(network, sequence, target, 1, everyStep);
+        boolean differs = false;
+        for (int i = 0; i < params.length; i++) {
+            differs |= Math.abs(truncated[i] - gradients[i]) > 1e-4f;
+        }
+        assertTrue(differs);
+    }
+
+    @Test
+    public void testRecurrentMatchesFiniteDifferences() {
+        MyRand.initialize(91);
+        checkFiniteDifferences(makeNetwork(new RecurrentLayer(3, 5), 5), false);
+    }
+
+    @Test
+    public void testLSTMMatchesFiniteDifferences() {
+        MyRand.initialize(92);
+        checkFiniteDifferences(makeNetwork(new LSTMLayer(3, 4), 4), false);
+    }
+
+    // The Player brain: the lower recurrent layer gets gradients from every step of the one above
+    private static Network makePlayerBrain() {
+        Network network = new Network();
+        network.addLayer(new RecurrentLayer(10, 16));
+        network.addLayer(new RecurrentLayer(16, 16));
+        network.addLayer(new DenseLayer(16, 8, "sigmoid"));
+        return network;
+    }
+
+    @Test
+    public void testStackedRecurrentMatchesFiniteDifferences() {
+        MyRand.initialize(95);
+        checkFiniteDifferences(makePlayerBrain(), false);
+    }
+
+    @Test
+    public void testLossOnEveryStepMatchesFiniteDifferences() {
+        MyRand.initialize(96);
+        checkFiniteDifferences(makePlayerBrain(), true);
+    }
+
+    @Test
+    public void testLayersAroundLSTMMatchFiniteDifferences() {
+        MyRand.initialize(97);
+        Network network = new Network();
+        network.addLayer(new DenseLayer(3, 5, "tanh"));
+        network.addLayer(new LSTMLayer(5, 4));
+        network.addLayer(new RecurrentLayer(4, 3));
+        network.addLayer(new DenseLayer(3, 2, "none"));
+        checkFiniteDifferences(network, true);
+    }
+
+    @Test
+    public void testWindowKeepsNewestSteps() {
+        MyRand.initialize(93);
+        RecurrentLayer layer = new RecurrentLayer(2, 3);
+        layer.setBackpropWindow(2);
+
+        // Only the last two steps count, so a long history gives the same gradients as a short one
+        Matrix[] sequence = new Matrix[6];
+        for (int t = 0; t < sequence.length; t++) {
+            sequence[t] = Matrix.randomUniform(1, 2, 1.0f);
+        }
+        Matrix outputGradient = Matrix.randomUniform(1, 3, 1.0f);
+
+        RecurrentState longState = makeNetwork(layer, 3).newState();
+        for (Matrix input : sequence) {
+            layer.feedForward(input, longState.getLayerState(0));
+        }
+        float[] longGradients = new float[layer.numParams()];
+        layer.backward(outputGradient, longState.getLayerState(0), longGradients, 0);
+
+        // Same hidden state going into the last two steps, with nothing recorded before them
+        RecurrentState shortState = longState.copy();
+        shortState.reset();
+        layer.setBackpropWindow(0);
+        for (int t = 0; t < 4; t++) {
+            layer.feedForward(sequence[t], shortState.getLayerState(0));
+        }
+        layer.setBackpropWindow(2);
+        for (int t = 4; t < 6; t++) {
+            layer.feedForward(sequence[t], shortState.getLayerState(0));
+        }
+        float[] shortGradients = new float[layer.numParams()];
+        layer.backward(outputGradient, shortState.getLayerState(0), shortGradients, 0);
+
+        assertArrayEquals(longGradients, shortGradients, 1e-6f);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNeedsWindow() {
+        MyRand.initialize(94);
+        LSTMLayer layer = new LSTMLayer(2, 3);
+        layer.feedForward(Matrix.randomUniform(1, 2, 1.0f));
+        layer.backward(new Matrix(1, 3), new float[layer.numParams()], 0);
+    }
+}
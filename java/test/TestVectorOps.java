@@ -0,0 +1,133 @@
+import network.math.Activations;
+import network.math.VectorOps;
+import org.junit.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.Assume.assumeTrue;
+import static org.junit.Assert.*;
+
+public class TestVectorOps {
+    // Every length up to a few vectors of the widest species, so each has a different tail, plus a long one
+    private static final int MAX_SHORT = 70;
+    private static final int LONG = 1023;
+
+    // Values are read from and written to this far into the arrays, with guard values after them
+    private static final int OFFSET = 3;
+    private static final int GUARD = 5;
+
+    private static final VectorOps SCALAR = new VectorOps();
+
+    // The SIMD backend, or null if it is not compiled in or the module is not added
+    private static VectorOps loadVector() {
+        try {
+            return (VectorOps) Class.forName("network.math.VectorApiOps").getDeclaredConstructor().newInstance();
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    private static int[] lengths() {
+        int[] lengths = new int[MAX_SHORT + 2];
+        for (int n = 0; n <= MAX_SHORT; n++) {
+            lengths[n] = n;
+        }
+        lengths[MAX_SHORT + 1] = LONG;
+        return lengths;
+    }
+
+    private static float[] random(int n, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        float[] values = new float[OFFSET + n + GUARD];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (float) (4 * random.nextDouble() - 2);
+        }
+        return values;
+    }
+
+    private static void assertWritten(String what, int n, float[] expected, float[] actual, float delta) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            boolean written = i >= OFFSET && i < OFFSET + n;
+            assertEquals(what + " n=" + n + " i=" + i, expected[i], actual[i], written ? delta : 0.0f);
+        }
+    }
+
+    @Test
+    public void testBackendSelection() {
+        VectorOps vector = loadVector();
+        boolean enabled = Boolean.parseBoolean(System.getProperty("network.math.vector", "true"));
+        assertEquals(enabled && vector != null, VectorOps.INSTANCE.isVectorized());
+
+        // Set by the vector-api profile, so a missing module fails the tests instead of quietly running scalar
+        if (Boolean.getBoolean("network.math.expectVector")) {
+            assertNotNull("VectorApiOps could not be loaded", vector);
+            assertTrue(VectorOps.INSTANCE.getName(), VectorOps.INSTANCE.isVectorized());
+        }
+    }
+
+    @Test
+    public void testElementwiseMatchesScalar() {
+        VectorOps vector = loadVector();
+        assumeTrue("Vector backend not available", vector != null);
+
+        for (int n : lengths()) {
+            float[] a = random(n, 1);
+            float[] b = random(n, 2);
+
+            // One rounding per value either way, so these are exact
+            float[] expected = random(n, 3);
+            float[] actual = expected.clone();
+            SCALAR.add(a, OFFSET, b, OFFSET, expected, OFFSET, n);
+            vector.add(a, OFFSET, b, OFFSET, actual, OFFSET, n);
+            assertWritten("add", n, expected, actual, 0.0f);
+
+            SCALAR.subtract(a, OFFSET, b, OFFSET, expected, OFFSET, n);
+            vector.subtract(a, OFFSET, b, OFFSET, actual, OFFSET, n);
+            assertWritten("subtract", n, expected, actual, 0.0f);
+
+            SCALAR.multiply(a, OFFSET, b, OFFSET, expected, OFFSET, n);
+            vector.multiply(a, OFFSET, b, OFFSET, actual, OFFSET, n);
+            assertWritten("multiply", n, expected, actual, 0.0f);
+
+            SCALAR.add(a, OFFSET, 0.75f, expected, OFFSET, n);
+            vector.add(a, OFFSET, 0.75f, actual, OFFSET, n);
+            assertWritten("add scalar", n, expected, actual, 0.0f);
+
+            SCALAR.multiply(a, OFFSET, -1.5f, expected, OFFSET, n);
+            vector.multiply(a, OFFSET, -1.5f, actual, OFFSET, n);
+            assertWritten("multiply scalar", n, expected, actual, 0.0f);
+
+            SCALAR.axpy(0.3f, a, OFFSET, expected, OFFSET, n);
+            vector.axpy(0.3f, a, OFFSET, actual, OFFSET, n);
+            assertWritten("axpy", n, expected, actual, 0.0f);
+
+            // Summed in lanes instead of in order
+            assertEquals("dot n=" + n, SCALAR.dot(a, OFFSET, b, OFFSET, n), vector.dot(a, OFFSET, b, OFFSET, n), 1e-6f * (n + 1));
+        }
+    }
+
+    @Test
+    public void testActivationsMatchScalar() {
+        VectorOps vector = loadVector();
+        assumeTrue("Vector backend not available", vector != null);
+
+        int[] activations = {Activations.NONE, Activations.RELU, Activations.SIGMOID, Activations.TANH,
+                Activations.FAST_SIGMOID, Activations.FAST_TANH};
+
+        for (int n : lengths()) {
+            for (int activation : activations) {
+                // The vector exp and tanh are within a few ulps of Math's, and the fast types use them too
+                float delta = activation == Activations.FAST_TANH ? Activations.FAST_TANH_MAX_ERROR
+                        : activation == Activations.FAST_SIGMOID ? Activations.FAST_SIGMOID_MAX_ERROR
+                        : 1e-6f;
+
+                float[] expected = random(n, 4);
+                float[] actual = expected.clone();
+                SCALAR.activate(expected, OFFSET, n, activation);
+                vector.activate(actual, OFFSET, n, activation);
+                assertWritten("activation " + activation, n, expected, actual, delta);
+            }
+        }
+    }
+}